@@ -0,0 +1,279 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: a ring of buckets, one per tick, that a single
+ * thread steps through once per tick, running the timers in the bucket that
+ * are due. A timer is placed in the bucket of the tick it falls due on,
+ * with a count of the turns of the wheel it must wait, so scheduling and
+ * cancelling take constant time however many timers are pending, and the
+ * work of each tick is proportional to the timers in one bucket. Timers run
+ * up to one tick late.
+ */
+public class TimerWheel implements Runnable
+{
+	/** Default length of a tick, in milliseconds */
+	public static final long DEFAULT_TICK = 10;
+
+	/** Default number of buckets; a turn of the wheel is about 5 seconds */
+	public static final int DEFAULT_BUCKETS = 512;
+
+	/**
+	 * A scheduled task, linked into the bucket of the tick it falls due on.
+	 */
+	private class WheelTimer implements Clock.Timer
+	{
+		final Runnable task;
+		final long period;
+		long deadline;
+		long turns;
+		volatile boolean cancelled;
+		WheelTimer prev;
+		WheelTimer next;
+		int bucket;
+
+		WheelTimer(Runnable task, long deadline, long period)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+			this.cancelled = false;
+			this.bucket = -1;
+		}
+
+		public void cancel()
+		{
+			synchronized (TimerWheel.this)
+			{
+				this.cancelled = true;
+				unlink(this);
+			}
+		}
+	}
+
+	/** Length of a tick, in nanoseconds */
+	private final long tick;
+
+	/** Heads of the lists of timers in each bucket */
+	private final WheelTimer[] buckets;
+
+	/** Mask that maps a tick number to its bucket */
+	private final int mask;
+
+	/** Time (from {@link System#nanoTime}) of tick 0 */
+	private final long origin;
+
+	/** Number of the next tick to process */
+	private long current;
+
+	/** Number of timers in the wheel */
+	private int count;
+
+	/** Thread that steps through the wheel */
+	private final Thread thread;
+
+	/** Set when the wheel has been stopped */
+	private boolean stopped;
+
+	/**
+	 * Create a timer wheel, with its own thread, which must be started.
+	 * @param tickMillis length of a tick, in milliseconds
+	 * @param buckets number of buckets; rounded up to a power of two
+	 * @param name name of the wheel's thread
+	 */
+	public TimerWheel(long tickMillis, int buckets, String name)
+	{
+		if (tickMillis <= 0 || buckets <= 0)
+		{ throw new IllegalArgumentException("Invalid timer wheel size"); }
+		int size = Integer.highestOneBit(buckets);
+		if (size < buckets)
+		{ size <<= 1; }
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.buckets = new WheelTimer[size];
+		this.mask = size - 1;
+		this.origin = System.nanoTime();
+		this.current = 0;
+		this.count = 0;
+		this.stopped = false;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Start running timers.
+	 */
+	public void start()
+	{ this.thread.start(); }
+
+	/**
+	 * Stop running timers. Pending timers never run.
+	 */
+	public synchronized void stop()
+	{
+		this.stopped = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Run a task once, or repeatedly at a fixed rate.
+	 * @param task the task
+	 * @param delay time (in milliseconds) to wait before first running the
+	 *        task
+	 * @param period time (in milliseconds) between the starts of runs; 0 to
+	 *        run the task once
+	 * @return the scheduled task
+	 */
+	public Clock.Timer schedule(Runnable task, long delay, long period)
+	{
+		if (period < 0)
+		{ throw new IllegalArgumentException("Invalid period " + period); }
+		WheelTimer timer = new WheelTimer(task,
+				System.nanoTime() - this.origin
+						+ TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)),
+				TimeUnit.MILLISECONDS.toNanos(period));
+		synchronized (this)
+		{ this.link(timer); }
+		return timer;
+	}
+
+	/**
+	 * @return number of timers waiting to run
+	 */
+	public synchronized int size()
+	{ return this.count; }
+
+	/**
+	 * Add a timer to the bucket of the tick it falls due on. Must be called
+	 * while holding the wheel's lock.
+	 */
+	private void link(WheelTimer timer)
+	{
+		if (0 == this.count)
+		{
+			// The wheel may have idled; skip the ticks that passed meanwhile
+			this.current = Math.max(this.current,
+					(System.nanoTime() - this.origin) / this.tick);
+			this.notifyAll();
+		}
+
+		long due = Math.max((timer.deadline + this.tick - 1) / this.tick,
+				this.current);
+		timer.turns = (due - this.current) / this.buckets.length;
+		timer.bucket = (int)(due & this.mask);
+		timer.prev = null;
+		timer.next = this.buckets[timer.bucket];
+		if (timer.next != null)
+		{ timer.next.prev = timer; }
+		this.buckets[timer.bucket] = timer;
+		this.count++;
+	}
+
+	/**
+	 * Remove a timer from its bucket, if it is in one. Must be called while
+	 * holding the wheel's lock.
+	 */
+	private void unlink(WheelTimer timer)
+	{
+		if (timer.bucket < 0)
+		{ return; }
+		if (timer.prev != null)
+		{ timer.prev.next = timer.next; }
+		else
+		{ this.buckets[timer.bucket] = timer.next; }
+		if (timer.next != null)
+		{ timer.next.prev = timer.prev; }
+		timer.prev = null;
+		timer.next = null;
+		timer.bucket = -1;
+		this.count--;
+	}
+
+	/**
+	 * Step through the wheel, one bucket per tick, running the timers that
+	 * are due.
+	 */
+	public void run()
+	{
+		List<WheelTimer> due = new ArrayList<WheelTimer>();
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					while (!this.stopped && 0 == this.count)
+					{ this.wait(); }
+					if (this.stopped)
+					{ return; }
+
+					long wait = this.current * this.tick
+							- (System.nanoTime() - this.origin);
+					if (wait > 0)
+					{
+						TimeUnit.NANOSECONDS.timedWait(this, wait);
+						continue;
+					}
+					this.expire(due);
+				}
+
+				for (WheelTimer timer : due)
+				{ this.fire(timer); }
+				due.clear();
+			}
+		}
+		catch (InterruptedException e)
+		{ }
+	}
+
+	/**
+	 * Take the timers that are due from the current bucket, and move on to
+	 * the next tick. Must be called while holding the wheel's lock.
+	 * @param due list to which timers that are due are added
+	 */
+	private void expire(List<WheelTimer> due)
+	{
+		WheelTimer timer = this.buckets[(int)(this.current & this.mask)];
+		while (timer != null)
+		{
+			WheelTimer next = timer.next;
+			if (timer.turns > 0)
+			{ timer.turns--; }
+			else
+			{
+				this.unlink(timer);
+				due.add(timer);
+			}
+			timer = next;
+		}
+		this.current++;
+	}
+
+	/**
+	 * Run a timer's task, and put a periodic timer back in the wheel for its
+	 * next run.
+	 */
+	private void fire(WheelTimer timer)
+	{
+		if (timer.cancelled)
+		{ return; }
+		try
+		{ timer.task.run(); }
+		catch (RuntimeException e)
+		{ e.printStackTrace(); }
+
+		if (timer.period > 0)
+		{
+			synchronized (this)
+			{
+				if (!timer.cancelled)
+				{
+					timer.deadline += timer.period;
+					this.link(timer);
+				}
+			}
+		}
+	}
+}
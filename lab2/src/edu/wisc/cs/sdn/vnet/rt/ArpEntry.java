@@ -3,6 +3,8 @@ package edu.wisc.cs.sdn.vnet.rt;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.Clock;
+
 /**
  * An entry in ARP table that maps an IP address to a MAC address.
  * @author Aaron Gember-Jacobson
@@ -27,7 +29,7 @@ public class ArpEntry
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.timeAdded = Clock.get().currentTimeMillis();
 	}
 	
 	/**
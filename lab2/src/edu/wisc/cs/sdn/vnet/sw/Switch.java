@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
 import net.floodlightcontroller.packet.Ethernet;
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
@@ -22,6 +23,15 @@ public class Switch extends Device
 	// ***NEW*** ConcurrentHashMap for storing packet entries
 	private ConcurrentHashMap<String, SwitchEntry> switchTable;
 	
+	// Entries not refreshed for longer than this (in milliseconds) are removed
+	static final long AGING_TIME = 15000;
+	
+	// Clock on which entries age
+	private final Clock clock;
+	
+	// Set once entries should no longer be aged
+	private volatile boolean shutdown;
+	
 
 	/**
 	 * Creates a router for a specific host.
@@ -34,9 +44,35 @@ public class Switch extends Device
 		// Here we initialize the forward table
 		switchTable = new ConcurrentHashMap<String, SwitchEntry>();
 		
-		// Here we initialize and start the thread that checks the forward table
-		TableChecker checkerThread = new TableChecker(switchTable);
-		checkerThread.start();
+		// Each entry gets its own aging timer when it is added; entries are
+		// also checked whenever they are looked up
+		clock = Clock.get();
+		shutdown = false;
+	}
+	
+	/**
+	 * Stop aging the forward table, and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		shutdown = true;
+		super.destroy();
+	}
+	
+	/**
+	 * Look up the entry for a MAC address, removing it if it is too old.
+	 * @param mac the MAC address
+	 * @return the entry; null if there is none or it was too old
+	 */
+	private SwitchEntry lookup(MACAddress mac)
+	{
+		String key = mac.toString();
+		SwitchEntry entry = switchTable.get(key);
+		if (entry != null && entry.isExpired(Clock.get().currentTimeMillis())) {
+			switchTable.remove(key, entry);
+			return null;
+		}
+		return entry;
 	}
 
 	/**
@@ -60,20 +96,27 @@ public class Switch extends Device
 		if (retrievedEntry != null) {
 
 			// If the entry exists, reset the time, and update the Iface in case of a change
-			long curTime = System.currentTimeMillis();
+			long curTime = Clock.get().currentTimeMillis();
 			retrievedEntry.setTimeStamp(curTime);
 			retrievedEntry.setIfNum(inIface);
 		} else {
 			
-			// If the entry does not exist, make a new entry
-			long curTime = System.currentTimeMillis();
+			// If the entry does not exist, make a new entry; only the thread
+			// whose entry goes in starts its aging timer
+			long curTime = Clock.get().currentTimeMillis();
 			SwitchEntry newEntry = new SwitchEntry(inIface, curTime);
-			switchTable.put(sourceMac.toString(), newEntry);
+			retrievedEntry = switchTable.putIfAbsent(sourceMac.toString(), newEntry);
+			if (retrievedEntry != null) {
+				retrievedEntry.setTimeStamp(curTime);
+				retrievedEntry.setIfNum(inIface);
+			} else {
+				clock.schedule(new Aging(sourceMac.toString(), newEntry), AGING_TIME);
+			}
 		}
 		
 		// Check if Forwarding table contains the current dest MAC
 		MACAddress destMac = etherPacket.getDestinationMAC();
-		retrievedEntry = switchTable.get(destMac.toString());
+		retrievedEntry = lookup(destMac);
 		if (retrievedEntry != null) {
 			
 			// Dest MAC exists in forwarding table, send the packet on interface in table entry
@@ -112,8 +155,8 @@ public class Switch extends Device
 	
 	
 	class SwitchEntry {
-		private Iface ifNum;
-		private long timeStamp;
+		private volatile Iface ifNum;
+		private volatile long timeStamp;
 		
 		
 		/**
@@ -147,40 +190,50 @@ public class Switch extends Device
 		void setTimeStamp(long timeStamp) {
 			this.timeStamp = timeStamp;
 		}
+		
+		// True if the entry has not been refreshed in the aging time
+		boolean isExpired(long now) {
+			return (now - timeStamp) > AGING_TIME;
+		}
 	}
 
 	/**
-	*	class TableChecker:
-	* 	This class is meant to be run as a helper thread that will look throught
-	*	the forward table, and remove any entries that are older than 15 seconds.
+	*	class Aging:
+	* 	This class is run by a timer to remove one entry from the forward table
+	*	once it is older than 15 seconds. Refreshing an entry only changes its
+	*	timestamp, so when the timer goes off for an entry that was refreshed,
+	*	it waits out the rest of the entry's time instead of removing it.
 	*
 	**/
 
-	class TableChecker extends Thread {
+	class Aging implements Runnable {
 		
-		// This is used for the thread to haver access to the forward table
-		private final ConcurrentHashMap<String, SwitchEntry> switchTable;
+		// The MAC address of the entry, which is its key in the forward table
+		private final String key;
 		
+		// The entry this timer ages
+		private final SwitchEntry entry;
 		
-		// This is the constructor for the class, it allows the forward table to be passed in
-		public TableChecker(ConcurrentHashMap<String, SwitchEntry> switchTable) {
-			this.switchTable = switchTable;
+		
+		// This is the constructor for the class, it takes the entry to age
+		Aging(String key, SwitchEntry entry) {
+			this.key = key;
+			this.entry = entry;
 		}
 		
 		
-		// This is the code run by the thread, which continuously searches the table for 
-		// entries older than 15 seconds. If the thread finds such an entry, it removes the entry
-		// from the list.
+		// This is the code run by the timer. If the entry was refreshed since the
+		// timer was set, the timer is set again for when the entry will be 15
+		// seconds old; otherwise the entry is removed from the table.
 		public void run() {
-			while (true) {
-				for (Map.Entry<String, SwitchEntry> entry : switchTable.entrySet()) {
-					String key = entry.getKey();
-					SwitchEntry value = entry.getValue();
-					if((System.currentTimeMillis() - value.getTimeStamp()) > 15000 ){
-						switchTable.remove(key, value);
-					}
-					
-				}
+			if (shutdown) {
+				return;
+			}
+			long age = clock.currentTimeMillis() - entry.getTimeStamp();
+			if (age <= AGING_TIME) {
+				clock.schedule(this, AGING_TIME - age + 1);
+			} else {
+				switchTable.remove(key, entry);
 			}
 		}
 		
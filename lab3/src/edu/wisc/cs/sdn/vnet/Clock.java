@@ -0,0 +1,96 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * Source of time and timers for the protocol machinery of devices: route
+ * expiry and periodic RIP updates, ARP retries and cache expiry, and MAC
+ * table aging. Everything reads the current clock (see {@link #get}), so
+ * installing a {@link SimulatedClock} before devices are created lets time
+ * be advanced instantly instead of waited for.
+ */
+public abstract class Clock
+{
+	/**
+	 * A scheduled task, which may be cancelled.
+	 */
+	public interface Timer
+	{
+		/**
+		 * Stop the task from running again. A run already in progress is not
+		 * interrupted.
+		 */
+		public void cancel();
+	}
+
+	/** Clock used by devices; null until first used or set */
+	private static volatile Clock current = null;
+
+	/**
+	 * @return the clock used by devices; the system clock unless another has
+	 *         been set
+	 */
+	public static Clock get()
+	{
+		Clock clock = current;
+		if (null == clock)
+		{
+			synchronized (Clock.class)
+			{
+				if (null == current)
+				{ current = new SystemClock(); }
+				clock = current;
+			}
+		}
+		return clock;
+	}
+
+	/**
+	 * Set the clock used by devices. Devices and tables created before the
+	 * clock is changed may keep using the old one, so set it first.
+	 * @param clock the clock
+	 */
+	public static void set(Clock clock)
+	{
+		if (null == clock)
+		{ throw new IllegalArgumentException("No clock"); }
+		current = clock;
+	}
+
+	/**
+	 * @return current time, in milliseconds since the epoch
+	 */
+	public abstract long currentTimeMillis();
+
+	/**
+	 * @return current time, in nanoseconds from an arbitrary origin; only
+	 *         differences between values are meaningful
+	 */
+	public abstract long nanoTime();
+
+	/**
+	 * Run a task once after a delay. Tasks must not block, since they may
+	 * share a thread with the tasks of every other device.
+	 * @param task the task
+	 * @param delay time (in milliseconds) to wait before running the task
+	 * @return the scheduled task
+	 */
+	public abstract Timer schedule(Runnable task, long delay);
+
+	/**
+	 * Run a task repeatedly at a fixed rate. Tasks must not block, since they
+	 * may share a thread with the tasks of every other device.
+	 * @param task the task
+	 * @param delay time (in milliseconds) to wait before first running the
+	 *        task
+	 * @param period time (in milliseconds) between the starts of runs
+	 * @return the scheduled task
+	 */
+	public abstract Timer schedule(Runnable task, long delay, long period);
+
+	/**
+	 * Run a task as soon as possible, on the clock's thread.
+	 * @param task the task
+	 * @return the scheduled task
+	 */
+	public Timer execute(Runnable task)
+	{ return this.schedule(task, 0); }
+}
@@ -1,6 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.floodlightcontroller.packet.Ethernet;
@@ -22,8 +24,13 @@ public abstract class Device
 	 *  null if packets should not be logged */
 	private DumpFile logfile;
 	
-	/** Virtual Network Simulator communication manager for the device */
-	private VNSComm vnsComm;
+	/** Carries frames sent by the device: usually its Virtual Network
+	 *  Simulator communication manager */
+	private FrameTransport transport;
+	
+	/** Worker threads processing received frames; null if frames are
+	 *  processed by the thread that receives them */
+	private Pipeline pipeline;
 	
 	/**
 	 * Creates a device.
@@ -35,7 +42,8 @@ public abstract class Device
 		this.host = host;
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
-		this.vnsComm = null;
+		this.transport = null;
+		this.pipeline = null;
 	}
 	
 	/**
@@ -69,13 +77,61 @@ public abstract class Device
 	 * @param vnsComm Virtual Network System communication manager for the router
 	 */
 	public void setVNSComm(VNSComm vnsComm)
-	{ this.vnsComm = vnsComm; }
+	{ this.transport = vnsComm; }
+	
+	/**
+	 * @param transport carries frames sent by the device
+	 */
+	public void setTransport(FrameTransport transport)
+	{ this.transport = transport; }
+	
+	/**
+	 * @return carries frames sent by the device; null if it has none
+	 */
+	public FrameTransport getTransport()
+	{ return this.transport; }
+	
+	/**
+	 * Process received frames on worker threads instead of the thread that
+	 * receives them. Frames of the same flow are always processed by the
+	 * same worker, in order.
+	 * @param workers number of worker threads; 0 to process frames on the
+	 *        receiving thread
+	 */
+	public void setWorkers(int workers)
+	{ this.setWorkers(workers, Pipeline.DEFAULT_WAIT_STRATEGY); }
+	
+	/**
+	 * Process received frames on worker threads instead of the thread that
+	 * receives them. Frames of the same flow are always processed by the
+	 * same worker, in order.
+	 * @param workers number of worker threads; 0 to process frames on the
+	 *        receiving thread
+	 * @param waitStrategy how workers wait when they have no frames
+	 */
+	public void setWorkers(int workers, FrameRing.WaitStrategy waitStrategy)
+	{
+		if (this.pipeline != null)
+		{ this.pipeline.shutdown(); }
+		this.pipeline = (workers > 0) ? new Pipeline(this, workers, 
+				Pipeline.DEFAULT_QUEUE_CAPACITY, waitStrategy) : null;
+	}
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * @return worker threads processing received frames; null if frames are
+	 *         processed by the thread that receives them
+	 */
+	public Pipeline getPipeline()
+	{ return this.pipeline; }
+	
+	/**
+	 * Stop the worker threads, if any, and close the PCAP dump file for the 
+	 * router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		if (this.pipeline != null)
+		{ this.pipeline.shutdown(); }
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -108,7 +164,127 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{ return this.transport.sendPacket(etherPacket, iface.getName()); }
+	
+	/**
+	 * Send a raw Ethernet frame out a specific interface.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit; the frame is copied, so the buffer may be reused as soon
+	 *        as this returns
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, Iface iface)
+	{ return this.transport.sendFrame(frame, iface.getName()); }
+	
+	/**
+	 * Send a raw Ethernet frame out a specific interface, lending the buffer
+	 * to the transport so the frame can be sent without being copied.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit; the bytes in front of the frame may be overwritten
+	 * @param iface interface on which to send the frame
+	 * @param lease owner of the buffer, which does not reuse it while the
+	 *        transport holds it; {@link FrameLease#DISPOSABLE} if the buffer
+	 *        is never reused; null if the buffer is reused as soon as this 
+	 *        returns, so the frame must be copied
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, Iface iface, FrameLease lease)
+	{ return this.transport.sendFrame(frame, iface.getName(), lease); }
+	
+	/**
+	 * Send several raw Ethernet frames out a specific interface at once. The
+	 * buffers are handed to the transport, which may send them in place.
+	 * @param frames buffers each holding an Ethernet frame between their 
+	 *        position and limit; the buffers must not be used after this is
+	 *        called
+	 * @param iface interface on which to send the frames
+	 * @return true if the frames were sent successfully, otherwise false
+	 */
+	public boolean sendFrames(List<ByteBuffer> frames, Iface iface)
+	{ return this.transport.sendFrames(frames, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface, before
+	 * it is decoded. The frame may be modified in place, but its buffer's 
+	 * position and limit must be left unchanged and the buffer must not be 
+	 * used after this method returns, other than by sending it with the 
+	 * lease.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param inIface the interface on which the frame was received
+	 * @param lease owner of the buffer, which lends it to send the frame in
+	 *        place; null if the buffer is reused as soon as this returns
+	 * @return true if the frame was fully handled; false if it should be
+	 *         decoded and passed to {@link #handlePacket}
+	 */
+	public boolean handleFrame(ByteBuffer frame, Iface inIface, 
+			FrameLease lease)
+	{ return this.handleFrame(frame, inIface); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface, before
+	 * it is decoded, without sending it in place. Called by the default
+	 * {@link #handleFrame(ByteBuffer, Iface, FrameLease)}.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was fully handled; false if it should be
+	 *         decoded and passed to {@link #handlePacket}
+	 */
+	public boolean handleFrame(ByteBuffer frame, Iface inIface)
+	{ return false; }
+	
+	/**
+	 * Accept a frame received on an interface, and process it either 
+	 * right away or on a worker thread. The buffer is not used after this
+	 * method returns.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param inIface the interface on which the frame was received
+	 */
+	public void receiveFrame(ByteBuffer frame, Iface inIface)
+	{
+		if (this.logfile != null)
+		{ this.logfile.dump(frame); }
+		if (this.pipeline != null)
+		{ this.pipeline.submit(frame, inIface); }
+		else
+		{ this.processFrame(frame, inIface, null); }
+	}
+	
+	/**
+	 * Process a received frame: offer it to {@link #handleFrame}, and decode
+	 * it and pass it to {@link #handlePacket} if it was not handled there.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param inIface the interface on which the frame was received
+	 * @param lease owner of the buffer, which lends it to send the frame in
+	 *        place; null if the buffer is reused as soon as this returns
+	 */
+	void processFrame(ByteBuffer frame, Iface inIface, FrameLease lease)
+	{
+		if (this.handleFrame(frame, inIface, lease))
+		{ return; }
+		
+		// Decode straight from the backing array when there is one
+		byte[] data;
+		int offset;
+		if (frame.hasArray())
+		{
+			data = frame.array();
+			offset = frame.arrayOffset() + frame.position();
+		}
+		else
+		{
+			data = new byte[frame.remaining()];
+			frame.duplicate().get(data);
+			offset = 0;
+		}
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(data, offset, frame.remaining());
+		this.handlePacket(etherPacket, inIface);
+	}
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
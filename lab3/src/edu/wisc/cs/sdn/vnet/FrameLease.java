@@ -0,0 +1,32 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * The owner of a buffer holding a received frame, which lends the buffer to
+ * a transport so the frame can be sent from it in place rather than copied.
+ * The owner does not reuse the buffer while a transport holds it.
+ */
+public interface FrameLease
+{
+	/** Lease for a buffer its owner never uses again, so a transport may 
+	 *  keep it for as long as it needs without telling anyone */
+	public static final FrameLease DISPOSABLE = new FrameLease() {
+		public void hold()
+		{ }
+
+		public void release()
+		{ }
+	};
+
+	/**
+	 * Note that a transport holds the buffer. Called before the send that
+	 * holds it returns.
+	 */
+	public void hold();
+
+	/**
+	 * Note that the transport no longer needs the buffer, because the frame
+	 * was written or discarded. Called once for each hold, possibly from
+	 * another thread.
+	 */
+	public void release();
+}
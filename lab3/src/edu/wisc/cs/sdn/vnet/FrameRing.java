@@ -0,0 +1,327 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * A bounded ring of reusable frame slots, passing received frames from a
+ * single producer thread to a single consumer thread. Slots are allocated
+ * once, with room for a VNS command header in front of the frame, so in the
+ * steady state neither side allocates or locks, and a forwarded frame is 
+ * sent from its slot in place.
+ * <p>
+ * The producer copies a frame into the next free slot and publishes it by
+ * advancing the tail; the consumer processes the slot at the head in place
+ * and releases it by advancing the head. A frame longer than a slot grows
+ * that slot once. The consumer lends a slot's buffer to the transport that
+ * sends its frame; if the transport still holds the buffer when the 
+ * producer comes back around to the slot, the slot is given a new buffer
+ * and the old one is left to the transport.
+ * <p>
+ * Closing the ring stops the producer from adding frames; the consumer 
+ * still takes the frames that were already published, then stops.
+ */
+public class FrameRing
+{
+	/** Default length of the frame held by each slot */
+	public static final int DEFAULT_SLOT_SIZE = 1514;
+
+	/**
+	 * How a consumer waits for a frame when the ring is empty.
+	 */
+	public enum WaitStrategy
+	{
+		/** Spin on the tail; lowest latency, keeps a core busy */
+		BUSY_SPIN,
+		/** Yield the processor between checks */
+		YIELD,
+		/** Spin briefly, then park until the producer signals */
+		PARK;
+
+		/** Number of checks a parking consumer spins before it parks */
+		private static final int SPIN_TRIES = 100;
+
+		/** Longest a parked consumer sleeps without a signal, in nanoseconds */
+		private static final long PARK_NANOS = 1000000;
+	}
+
+	/**
+	 * Whether a transport holds one of a slot's buffers. Each buffer has its
+	 * own lease, so a late release of a buffer the slot has replaced does 
+	 * not affect the new one.
+	 */
+	private static class Lease implements FrameLease
+	{
+		volatile boolean held;
+
+		public void hold()
+		{ this.held = true; }
+
+		public void release()
+		{ this.held = false; }
+	}
+
+	/**
+	 * A reusable slot holding one frame.
+	 */
+	private static class Slot
+	{
+		byte[] data;
+		ByteBuffer buffer;
+		Lease lease;
+		Iface inIface;
+
+		Slot(int size)
+		{ this.allocate(size); }
+
+		void allocate(int size)
+		{
+			this.data = new byte[CommandPacket.HEADER_LENGTH + size];
+			this.buffer = ByteBuffer.wrap(this.data);
+			this.lease = new Lease();
+		}
+	}
+
+	/** Slots of the ring */
+	private final Slot[] slots;
+
+	/** Mask applied to a sequence number to select a slot */
+	private final int mask;
+
+	/** How the consumer waits when the ring is empty */
+	private final WaitStrategy waitStrategy;
+
+	/** Sequence number of the next slot the consumer will take */
+	private final AtomicLong head;
+
+	/** Sequence number of the next slot the producer will fill */
+	private final AtomicLong tail;
+
+	/** Producer's cached copy of the head, to avoid reading it per frame */
+	private long cachedHead;
+
+	/** Consumer waiting to be signaled; null if it is not parked */
+	private volatile Thread waiter;
+
+	/** Number of frames dropped because the ring was full */
+	private final AtomicLong drops;
+
+	/** Largest number of frames waiting in the ring */
+	private volatile int highWater;
+
+	/** Number of buffers replaced because a transport still held them */
+	private final AtomicLong replaced;
+
+	/** Set once the ring is closed */
+	private volatile boolean closed;
+
+	/**
+	 * Create a ring with every slot allocated.
+	 * @param capacity number of slots; rounded up to a power of two
+	 * @param slotSize length of the frame each slot holds initially
+	 * @param waitStrategy how the consumer waits when the ring is empty
+	 */
+	public FrameRing(int capacity, int slotSize, WaitStrategy waitStrategy)
+	{
+		if (capacity < 1 || slotSize < 1)
+		{ throw new IllegalArgumentException("Invalid capacity or slot size"); }
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{ size <<= 1; }
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++)
+		{ this.slots[i] = new Slot(slotSize); }
+		this.mask = size - 1;
+		this.waitStrategy = waitStrategy;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+		this.cachedHead = 0;
+		this.waiter = null;
+		this.drops = new AtomicLong();
+		this.highWater = 0;
+		this.replaced = new AtomicLong();
+		this.closed = false;
+	}
+
+	/**
+	 * Copy a frame into the next free slot and publish it. Must only be
+	 * called by the producer thread.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit; the buffer's position is not changed
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was published; false if the ring was full
+	 *         or closed and the frame was dropped
+	 */
+	public boolean offer(ByteBuffer frame, Iface inIface)
+	{
+		if (this.closed)
+		{ return false; }
+		long seq = this.tail.get();
+		if (seq - this.cachedHead > this.mask)
+		{
+			this.cachedHead = this.head.get();
+			if (seq - this.cachedHead > this.mask)
+			{
+				this.drops.incrementAndGet();
+				return false;
+			}
+		}
+
+		Slot slot = this.slots[(int)seq & this.mask];
+		int len = frame.remaining();
+		if (slot.lease.held)
+		{
+			slot.allocate(Math.max(len, 
+					slot.data.length - CommandPacket.HEADER_LENGTH));
+			this.replaced.incrementAndGet();
+		}
+		else if (CommandPacket.HEADER_LENGTH + len > slot.data.length)
+		{ slot.allocate(len); }
+		frame.duplicate().get(slot.data, CommandPacket.HEADER_LENGTH, len);
+		slot.buffer.limit(CommandPacket.HEADER_LENGTH + len);
+		slot.buffer.position(CommandPacket.HEADER_LENGTH);
+		slot.inIface = inIface;
+
+		// Publish the slot; the ordered write makes its contents visible to
+		// the consumer before the new tail. A consumer that parks announces
+		// itself and then rechecks the tail, so the tail must be written
+		// with a full volatile store before the waiter is read, or both
+		// sides could miss each other's write
+		if (WaitStrategy.PARK == this.waitStrategy)
+		{ this.tail.set(seq + 1); }
+		else
+		{ this.tail.lazySet(seq + 1); }
+
+		Thread waiter = this.waiter;
+		if (waiter != null)
+		{ LockSupport.unpark(waiter); }
+		return true;
+	}
+
+	/**
+	 * Wait for the next frame and pass it to a device, then release its slot.
+	 * The device must not retain the buffer, other than by lending it to a
+	 * transport. Must only be called by the consumer thread.
+	 * @param device device that processes the frame
+	 * @return false if the ring was closed and is empty, or the thread was
+	 *         interrupted while waiting
+	 */
+	public boolean consume(Device device)
+	{
+		long seq = this.head.get();
+		long tail;
+		int idle = 0;
+		while ((tail = this.tail.get()) <= seq)
+		{
+			if (Thread.interrupted())
+			{ return false; }
+			// Recheck the tail, since a frame may be published before the
+			// ring is closed
+			if (this.closed && this.tail.get() <= seq)
+			{ return false; }
+			this.idle(idle++);
+		}
+		if (tail - seq > this.highWater)
+		{ this.highWater = (int)(tail - seq); }
+
+		Slot slot = this.slots[(int)seq & this.mask];
+		try
+		{ device.processFrame(slot.buffer, slot.inIface, slot.lease); }
+		finally
+		{
+			slot.inIface = null;
+			this.head.lazySet(seq + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait once for the producer, according to the wait strategy.
+	 * @param idle number of times the consumer has already waited
+	 */
+	private void idle(int idle)
+	{
+		switch (this.waitStrategy)
+		{
+		case BUSY_SPIN:
+			Thread.onSpinWait();
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			if (idle < WaitStrategy.SPIN_TRIES)
+			{
+				Thread.onSpinWait();
+				break;
+			}
+			// Announce the wait before rechecking; with the producer's
+			// volatile store of the tail, either the recheck sees the frame
+			// or the producer sees the waiter and unparks it
+			this.waiter = Thread.currentThread();
+			if (this.tail.get() <= this.head.get())
+			{ LockSupport.parkNanos(this, WaitStrategy.PARK_NANOS); }
+			this.waiter = null;
+			break;
+		}
+	}
+
+	/**
+	 * Stop accepting frames, and wake the consumer so it can finish the 
+	 * frames already published and stop.
+	 */
+	public void close()
+	{
+		this.closed = true;
+		Thread waiter = this.waiter;
+		if (waiter != null)
+		{ LockSupport.unpark(waiter); }
+	}
+
+	/**
+	 * @return number of slots in the ring
+	 */
+	public int getCapacity()
+	{ return this.slots.length; }
+
+	/**
+	 * @return number of frames waiting in the ring
+	 */
+	public int getOccupancy()
+	{ return (int)(this.tail.get() - this.head.get()); }
+
+	/**
+	 * @return largest number of frames the consumer has found waiting in the
+	 *         ring at once
+	 */
+	public int getHighWater()
+	{ return this.highWater; }
+
+	/**
+	 * @return number of frames released by the consumer
+	 */
+	public long getConsumed()
+	{ return this.head.get(); }
+
+	/**
+	 * @return number of frames dropped because the ring was full
+	 */
+	public long getDrops()
+	{ return this.drops.get(); }
+
+	/**
+	 * @return number of slot buffers replaced because a transport still held
+	 *         them when the slot was reused
+	 */
+	public long getReplaced()
+	{ return this.replaced.get(); }
+
+	/**
+	 * @return how the consumer waits when the ring is empty
+	 */
+	public WaitStrategy getWaitStrategy()
+	{ return this.waitStrategy; }
+}
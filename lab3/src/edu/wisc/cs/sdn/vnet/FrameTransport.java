@@ -0,0 +1,59 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Carries the frames a device sends out its interfaces to wherever they are
+ * attached: a VNS server, or links to other devices in the same process.
+ */
+public interface FrameTransport
+{
+	/**
+	 * Send an Ethernet packet out an interface.
+	 * @param etherPacket an Ethernet packet with all fields, encapsulated
+	 *        headers, and payloads completed
+	 * @param ifaceName name of the interface on which to send the packet
+	 * @return true if the packet was queued to be sent, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, String ifaceName);
+
+	/**
+	 * Send a raw Ethernet frame out an interface. The frame is copied, so the
+	 * caller may reuse its buffer as soon as this returns.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was queued to be sent, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, String ifaceName);
+
+	/**
+	 * Send a raw Ethernet frame out an interface from a lent buffer. The 
+	 * transport either copies the frame before returning, or holds the 
+	 * lease, sends the frame from the buffer (possibly overwriting the bytes
+	 * in front of it), and releases the lease once the buffer is no longer
+	 * needed.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit; the buffer's position and limit are not changed
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @param lease owner of the buffer; {@link FrameLease#DISPOSABLE} if the
+	 *        buffer is never reused; null if the buffer is reused as soon as
+	 *        this returns, so the frame must be copied
+	 * @return true if the frame was queued to be sent, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, String ifaceName, 
+			FrameLease lease);
+
+	/**
+	 * Send several raw Ethernet frames out the same interface at once. The
+	 * buffers are never reused, as with {@link FrameLease#DISPOSABLE}.
+	 * @param frames buffers each holding an Ethernet frame between their
+	 *        position and limit
+	 * @param ifaceName name of the interface on which to send the frames
+	 * @return true if the frames were queued to be sent, otherwise false
+	 */
+	public boolean sendFrames(List<ByteBuffer> frames, String ifaceName);
+}
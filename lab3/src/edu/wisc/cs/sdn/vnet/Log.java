@@ -0,0 +1,520 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, level-gated logging for the packet processing path.
+ * Messages are logged to a named {@link Category}; a message below its
+ * category's level costs one volatile read and is never formatted. A
+ * message that passes the level and the category's sampling is queued,
+ * unformatted, on a bounded lock-free queue, from which a background thread
+ * formats and writes it. If the queue is full the message is dropped and
+ * counted.
+ * <p>
+ * Arguments that are strings, boxed primitives or enums are kept as they
+ * are and formatted by the background thread. Any other argument may change
+ * before the background thread gets to it, so it is converted to a string
+ * by the calling thread.
+ * <p>
+ * Categories are configured with a specification of comma separated items:
+ * a bare level sets the default level, and <code>category=level</code> or
+ * <code>category=level:N</code> sets a category's level and logs only one of
+ * every N of its messages, e.g., <code>info,packet=debug:100</code>.
+ */
+public class Log
+{
+	/** Default number of messages waiting to be written */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Default level of categories not configured otherwise */
+	public static final Level DEFAULT_LEVEL = Level.INFO;
+
+	/**
+	 * Severity of a message. A category logs messages at or above its level.
+	 */
+	public enum Level
+	{ TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+	/**
+	 * A named source of messages, with its own level and sampling rate.
+	 */
+	public static class Category
+	{
+		private final String name;
+		private volatile Level level;
+		private volatile int sampleRate;
+		private final AtomicLong candidates;
+		private volatile boolean configured;
+
+		private Category(String name, Level level)
+		{
+			this.name = name;
+			this.level = level;
+			this.sampleRate = 1;
+			this.candidates = new AtomicLong();
+			this.configured = false;
+		}
+
+		/**
+		 * @return name of the category
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @return lowest level of messages the category logs
+		 */
+		public Level getLevel()
+		{ return this.level; }
+
+		/**
+		 * @param level lowest level of messages the category logs
+		 */
+		public void setLevel(Level level)
+		{
+			this.level = level;
+			this.configured = true;
+		}
+
+		/**
+		 * @param sampleRate log only one of every this many messages that
+		 *        pass the level; 1 to log every message
+		 */
+		public void setSampleRate(int sampleRate)
+		{
+			if (sampleRate < 1)
+			{ throw new IllegalArgumentException("Invalid rate " + sampleRate); }
+			this.sampleRate = sampleRate;
+		}
+
+		/**
+		 * @return one of every this many messages that pass the level is
+		 *         logged
+		 */
+		public int getSampleRate()
+		{ return this.sampleRate; }
+
+		/**
+		 * @param level level of a message
+		 * @return true if messages at the level pass the category's level;
+		 *         guard expensive arguments with this
+		 */
+		public boolean isEnabled(Level level)
+		{ return level.compareTo(this.level) >= 0; }
+
+		public void trace(String message)
+		{ this.log(Level.TRACE, message); }
+
+		public void trace(String format, Object arg)
+		{ this.log(Level.TRACE, format, arg); }
+
+		public void trace(String format, Object... args)
+		{ this.log(Level.TRACE, format, args); }
+
+		public void debug(String message)
+		{ this.log(Level.DEBUG, message); }
+
+		public void debug(String format, Object arg)
+		{ this.log(Level.DEBUG, format, arg); }
+
+		public void debug(String format, Object... args)
+		{ this.log(Level.DEBUG, format, args); }
+
+		public void info(String message)
+		{ this.log(Level.INFO, message); }
+
+		public void info(String format, Object arg)
+		{ this.log(Level.INFO, format, arg); }
+
+		public void info(String format, Object... args)
+		{ this.log(Level.INFO, format, args); }
+
+		public void warn(String message)
+		{ this.log(Level.WARN, message); }
+
+		public void warn(String format, Object arg)
+		{ this.log(Level.WARN, format, arg); }
+
+		public void warn(String format, Object... args)
+		{ this.log(Level.WARN, format, args); }
+
+		public void error(String message)
+		{ this.log(Level.ERROR, message); }
+
+		public void error(String format, Object arg)
+		{ this.log(Level.ERROR, format, arg); }
+
+		public void error(String format, Object... args)
+		{ this.log(Level.ERROR, format, args); }
+
+		/**
+		 * Log a message, if it passes the category's level and sampling.
+		 * @param level level of the message
+		 * @param message the message
+		 */
+		public void log(Level level, String message)
+		{
+			if (this.passes(level))
+			{ enqueue(new Record(level, this.name, message, null)); }
+		}
+
+		/**
+		 * Log a message, if it passes the category's level and sampling. The
+		 * message is only formatted if it is logged, by the writer thread.
+		 * @param level level of the message
+		 * @param format format string, as for {@link String#format}
+		 * @param arg argument referenced by the format string
+		 */
+		public void log(Level level, String format, Object arg)
+		{
+			if (this.passes(level))
+			{
+				enqueue(new Record(level, this.name, format, 
+						new Object[] { capture(arg) }));
+			}
+		}
+
+		/**
+		 * Log a message, if it passes the category's level and sampling. The
+		 * message is only formatted if it is logged, by the writer thread; 
+		 * the argument array is allocated regardless, so guard calls on the
+		 * packet path with {@link #isEnabled}.
+		 * @param level level of the message
+		 * @param format format string, as for {@link String#format}
+		 * @param args arguments referenced by the format string
+		 */
+		public void log(Level level, String format, Object... args)
+		{
+			if (this.passes(level))
+			{
+				Object[] captured = new Object[args.length];
+				for (int i = 0; i < args.length; i++)
+				{ captured[i] = capture(args[i]); }
+				enqueue(new Record(level, this.name, format, captured));
+			}
+		}
+
+		/**
+		 * @param level level of a message
+		 * @return true if the message passes the category's level and is
+		 *         selected by its sampling
+		 */
+		private boolean passes(Level level)
+		{
+			if (!this.isEnabled(level))
+			{ return false; }
+			int sampleRate = this.sampleRate;
+			return sampleRate <= 1 
+					|| 0 == this.candidates.getAndIncrement() % sampleRate;
+		}
+	}
+
+	/**
+	 * A message waiting to be formatted and written.
+	 */
+	private static class Record
+	{
+		final Level level;
+		final String category;
+		final String format;
+		final Object[] args;
+
+		/**
+		 * @param level level of the message
+		 * @param category name of the category that logged the message
+		 * @param format format string; the message itself if there are no
+		 *        arguments
+		 * @param args arguments referenced by the format string; null if
+		 *        the format string is the message
+		 */
+		Record(Level level, String category, String format, Object[] args)
+		{
+			this.level = level;
+			this.category = category;
+			this.format = format;
+			this.args = args;
+		}
+
+		/**
+		 * @return the formatted message; continuation lines are indented
+		 */
+		String format()
+		{
+			String message = this.format;
+			if (this.args != null)
+			{
+				try
+				{ message = String.format(this.format, this.args); }
+				catch (IllegalFormatException e)
+				{ message = this.format + " " + Arrays.toString(this.args); }
+			}
+			if (this.level.compareTo(Level.WARN) >= 0)
+			{ message = this.level + " [" + this.category + "] " + message; }
+			if (message.indexOf('\n') >= 0)
+			{ message = message.replace("\n", "\n\t"); }
+			return message;
+		}
+	}
+
+	/** Categories by name */
+	private static final ConcurrentMap<String,Category> categories =
+			new ConcurrentHashMap<String,Category>();
+
+	/** Level of categories not configured otherwise */
+	private static volatile Level defaultLevel = DEFAULT_LEVEL;
+
+	/** Messages waiting to be written */
+	private static final ConcurrentLinkedQueue<Record> queue =
+			new ConcurrentLinkedQueue<Record>();
+
+	/** Number of messages waiting to be written */
+	private static final AtomicInteger pending = new AtomicInteger();
+
+	/** Number of messages dropped because the queue was full */
+	private static final AtomicLong dropped = new AtomicLong();
+
+	/** Number of messages queued */
+	private static final AtomicLong enqueued = new AtomicLong();
+
+	/** Number of messages written */
+	private static final AtomicLong written = new AtomicLong();
+
+	/** Where messages are written */
+	private static volatile PrintStream out = System.out;
+
+	/** Thread writing messages; null until the first message is queued */
+	private static volatile Thread writer = null;
+
+	/** True while the writer is parked waiting for messages */
+	private static volatile boolean waiting = false;
+
+	/**
+	 * Get a category, creating it at the default level if it does not exist.
+	 * @param name name of the category
+	 * @return the category
+	 */
+	public static Category getCategory(String name)
+	{
+		Category category = categories.get(name);
+		if (null == category)
+		{
+			categories.putIfAbsent(name, new Category(name, defaultLevel));
+			category = categories.get(name);
+		}
+		return category;
+	}
+
+	/**
+	 * Set the default level, which applies to every category whose level has
+	 * not been set explicitly.
+	 * @param level lowest level of messages logged by default
+	 */
+	public static void setDefaultLevel(Level level)
+	{
+		defaultLevel = level;
+		for (Category category : categories.values())
+		{
+			if (!category.configured)
+			{ category.level = level; }
+		}
+	}
+
+	/**
+	 * @return lowest level of messages logged by default
+	 */
+	public static Level getDefaultLevel()
+	{ return defaultLevel; }
+
+	/**
+	 * Configure levels and sampling from a specification such as
+	 * <code>info,packet=debug:100</code>.
+	 * @param spec comma separated default level and category settings
+	 * @return true if the specification was valid; otherwise nothing is
+	 *         changed
+	 */
+	public static boolean configure(String spec)
+	{
+		Level newDefault = null;
+		List<String> names = new ArrayList<String>();
+		List<Level> levels = new ArrayList<Level>();
+		List<Integer> rates = new ArrayList<Integer>();
+		try
+		{
+			for (String item : spec.split(","))
+			{
+				item = item.trim();
+				if (0 == item.length())
+				{ continue; }
+				int eq = item.indexOf('=');
+				if (eq < 0)
+				{
+					newDefault = Level.valueOf(item.toUpperCase());
+					continue;
+				}
+				String value = item.substring(eq + 1);
+				int colon = value.indexOf(':');
+				int rate = 1;
+				if (colon >= 0)
+				{
+					rate = Integer.parseInt(value.substring(colon + 1));
+					value = value.substring(0, colon);
+				}
+				if (rate < 1)
+				{ return false; }
+				names.add(item.substring(0, eq).trim());
+				levels.add(Level.valueOf(value.trim().toUpperCase()));
+				rates.add(rate);
+			}
+		}
+		catch (IllegalArgumentException e)
+		{ return false; }
+
+		if (newDefault != null)
+		{ setDefaultLevel(newDefault); }
+		for (int i = 0; i < names.size(); i++)
+		{
+			Category category = getCategory(names.get(i));
+			category.setLevel(levels.get(i));
+			category.setSampleRate(rates.get(i));
+		}
+		return true;
+	}
+
+	/**
+	 * @param stream where messages are written
+	 */
+	public static void setOutput(PrintStream stream)
+	{ out = stream; }
+
+	/**
+	 * Keep an argument for the writer thread to format, converting it to a
+	 * string first unless it is immutable.
+	 * @param arg argument of a message
+	 * @return the argument, or its string form
+	 */
+	private static Object capture(Object arg)
+	{
+		if (null == arg || arg instanceof String || arg instanceof Integer
+				|| arg instanceof Long || arg instanceof Short 
+				|| arg instanceof Byte || arg instanceof Double 
+				|| arg instanceof Float || arg instanceof Boolean
+				|| arg instanceof Character || arg instanceof Enum)
+		{ return arg; }
+		return String.valueOf(arg);
+	}
+
+	/**
+	 * Queue a message for the writer thread, dropping it if the queue is
+	 * full.
+	 * @param record the message
+	 */
+	private static void enqueue(Record record)
+	{
+		if (pending.incrementAndGet() > DEFAULT_CAPACITY)
+		{
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		enqueued.incrementAndGet();
+		queue.offer(record);
+		Thread thread = writer;
+		if (null == thread)
+		{ startWriter(); }
+		else if (waiting)
+		{ LockSupport.unpark(thread); }
+	}
+
+	/**
+	 * Start the thread that writes queued messages, if it is not running.
+	 */
+	private static synchronized void startWriter()
+	{
+		if (writer != null)
+		{ return; }
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{
+				while (true)
+				{
+					Record record = queue.poll();
+					if (null == record)
+					{
+						// Announce the wait before rechecking, so a message
+						// queued in between is not missed
+						waiting = true;
+						if (queue.isEmpty())
+						{ LockSupport.park(this); }
+						waiting = false;
+						if (Thread.interrupted())
+						{ return; }
+						continue;
+					}
+
+					PrintStream stream = out;
+					int count = 0;
+					for (; record != null; record = queue.poll())
+					{
+						stream.println(record.format());
+						count++;
+					}
+					stream.flush();
+					pending.addAndGet(-count);
+					written.addAndGet(count);
+				}
+			}
+		}, "log-writer");
+		thread.setDaemon(true);
+		thread.start();
+		writer = thread;
+	}
+
+	/**
+	 * Wait until every queued message has been written, or until a timeout.
+	 * @param timeout longest time to wait, in milliseconds
+	 * @return true if every queued message was written
+	 */
+	public static boolean flush(long timeout)
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (getQueued() > 0)
+		{
+			if (System.currentTimeMillis() >= deadline)
+			{ return false; }
+			try
+			{ TimeUnit.MILLISECONDS.sleep(1); }
+			catch (InterruptedException e)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of messages queued but not yet written
+	 */
+	public static long getQueued()
+	{ return enqueued.get() - written.get(); }
+
+	/**
+	 * @return number of messages dropped because the queue was full
+	 */
+	public static long getDropped()
+	{ return dropped.get(); }
+
+	/**
+	 * @return number of messages written
+	 */
+	public static long getWritten()
+	{ return written.get(); }
+}
@@ -1,29 +1,45 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.EgressWriter;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import edu.wisc.cs.sdn.vnet.vns.VNSMux;
 
 public class Main 
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
 	
+	/** Placeholder replaced by the host name in per-device file names */
+	private static final String HOST_PLACEHOLDER = "%s";
+
+	// Options shared by every device
+	private static String server = DEFAULT_SERVER;
+	private static short port = DEFAULT_PORT;
+	private static String routeTableFile = null;
+	private static String arpCacheFile = null;
+	private static String logfile = null;
+	private static int fwdCacheSize = 0;
+	private static int workers = 0;
+	private static int batchSize = EgressWriter.DEFAULT_BATCH_SIZE;
+	private static long flushDeadline = EgressWriter.DEFAULT_FLUSH_DEADLINE;
+	private static int maxCommandLength = VNSComm.DEFAULT_MAX_COMMAND_LENGTH;
+	private static FrameRing.WaitStrategy waitStrategy =
+			Pipeline.DEFAULT_WAIT_STRATEGY;
+
+	// New value to see if route table was provided
+	private static boolean routeTableProvided = false;
+
 	public static void main(String[] args)
 	{
-		String host = null;
-		String server = DEFAULT_SERVER;
-		String routeTableFile = null;
-		String arpCacheFile = null;
-		String logfile = null;
-		short port = DEFAULT_PORT;
-		VNSComm vnsComm = null;
-		Device dev = null;
-		
-		
-		// New value to see if route table was provided
-		boolean routeTableProvided = false;
+		List<String> hosts = new ArrayList<String>();
+		int eventLoops = 0;
 		
 		// Parse arguments
 		for(int i = 0; i < args.length; i++)
@@ -38,7 +54,13 @@ public class Main
 			else if(arg.equals("-p"))
 			{ port = Short.parseShort(args[++i]); }
 			else if (arg.equals("-v"))
-			{ host = args[++i]; }
+			{
+				for (String host : args[++i].split(","))
+				{
+					if (host.length() > 0)
+					{ hosts.add(host); }
+				}
+			}
 			else if (arg.equals("-s"))
 			{ server = args[++i]; }
 			else if (arg.equals("-l"))
@@ -50,52 +72,173 @@ public class Main
 			}
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-c"))
+			{ fwdCacheSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-b"))
+			{ batchSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{ flushDeadline = Long.parseLong(args[++i]); }
+			else if (arg.equals("-m"))
+			{ maxCommandLength = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-e"))
+			{ eventLoops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				if (!Log.configure(args[++i]))
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-W"))
+			{ 
+				waitStrategy = FrameRing.WaitStrategy.valueOf(
+						args[++i].toUpperCase().replace('-', '_')); 
+			}
 		}
 		
-		if (null == host)
+		if (hosts.isEmpty())
 		{
 			usage();
 			return;
 		}
 		
+		if (1 == hosts.size())
+		{ runSingle(hosts.get(0)); }
+		else
+		{ runMultiplexed(hosts, eventLoops); }
+		Log.flush(1000);
+	}
+
+	/**
+	 * Run one device, reading from its connection on this thread.
+	 * @param host name of the device
+	 */
+	private static void runSingle(String host)
+	{
+		VNSComm vnsComm = startDevice(host);
+		if (null == vnsComm)
+		{ System.exit(1); }
+
+		// Read messages from the server until the server closes the connection
+		System.out.println("<-- Ready to process packets -->");
+		while (vnsComm.readFromServer());
+
+		// Shutdown the router
+		vnsComm.close();
+		vnsComm.getDevice().destroy();
+	}
+
+	/**
+	 * Run several devices in this process, driving their connections from a
+	 * pool of event loops.
+	 * @param hosts names of the devices
+	 * @param eventLoops number of event loops; 0 for one per processor, up
+	 *        to one per device
+	 */
+	private static void runMultiplexed(List<String> hosts, int eventLoops)
+	{
+		if (eventLoops <= 0)
+		{
+			eventLoops = Math.min(hosts.size(),
+					Runtime.getRuntime().availableProcessors());
+		}
+
+		VNSMux mux;
+		try
+		{ mux = new VNSMux(eventLoops); }
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		}
+
+		for (String host : hosts)
+		{
+			VNSComm vnsComm = startDevice(host);
+			if (null == vnsComm)
+			{ System.exit(1); }
+			try
+			{ mux.register(vnsComm); }
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
+		// Process messages until the server closes every connection
+		System.out.println(String.format(
+				"<-- Ready to process packets for %d devices on %d event loops -->",
+				hosts.size(), mux.getLoopCount()));
+		try
+		{ mux.awaitClosed(); }
+		catch (InterruptedException e)
+		{ }
+		mux.shutdown();
+	}
+
+	/**
+	 * Create a device, connect it to the server, negotiate its session, and
+	 * load its static tables.
+	 * @param host name of the device
+	 * @return the device's connection to the server; null if the device
+	 *         could not be started
+	 */
+	private static VNSComm startDevice(String host)
+	{
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
-		if (logfile != null)
+		String hostLogfile = forHost(logfile, host);
+		if (hostLogfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(hostLogfile);
 			if (null == dump)
 			{
-				System.err.println("Error opening up dump file "+logfile);
-				return;
+				System.err.println("Error opening up dump file "+hostLogfile);
+				return null;
 			}
 		}
-		
+
+		Device dev = null;
 		if (host.startsWith("s"))
 		{ dev = new Switch(host, dump); }
 		else if (host.startsWith("r"))
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			if (fwdCacheSize > 0)
+			{ ((Router)dev).setForwardingCacheCapacity(fwdCacheSize); }
 		}
 		else 
 		{
 			System.err.println("Device name must start with 's' or 'r'");
-			return;
+			return null;
 		}
 		
 		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
-				server, port));
-		vnsComm = new VNSComm(dev);
+		System.out.println(String.format("Connecting to server %s:%d as %s",
+				server, port, host));
+		VNSComm vnsComm = new VNSComm(dev);
+		vnsComm.setBatchSize(batchSize);
+		vnsComm.setFlushDeadline(flushDeadline);
+		vnsComm.setMaxCommandLength(maxCommandLength);
 		if (!vnsComm.connectToServer(port, server))
-		{ System.exit(1); }
+		{ return null; }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
+		// Process received frames on worker threads, if requested
+		if (workers > 0)
+		{ dev.setWorkers(workers, waitStrategy); }
+		
 		if (dev instanceof Router) 
 		{
 			// Read static route table
 			if (routeTableFile != null)
-			{ ((Router)dev).loadRouteTable(routeTableFile); }
+			{ ((Router)dev).loadRouteTable(forHost(routeTableFile, host)); }
 			// If no route table was provided, load entries from interfaces
 			if(!routeTableProvided) {
 			  ((Router)dev).loadAllIfaces();
@@ -103,23 +246,36 @@ public class Main
 			
 			// Read static ACP cache
 			if (arpCacheFile != null)
-			{ ((Router)dev).loadArpCache(arpCacheFile); }
+			{ ((Router)dev).loadArpCache(forHost(arpCacheFile, host)); }
 		}
+		return vnsComm;
+	}
 
-		// Read messages from the server until the server closes the connection
-		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
-		
-		// Shutdown the router
-		dev.destroy();
+	/**
+	 * @param filename file name, possibly containing the host placeholder
+	 * @param host name of a device
+	 * @return the file name for the device; null if the file name is null
+	 */
+	private static String forHost(String filename, String host)
+	{
+		if (null == filename)
+		{ return null; }
+		return filename.replace(HOST_PLACEHOLDER, host);
 	}
 	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
-		System.out.println("VNet -v host [-s server] [-p port] [-h]");
+		System.out.println("VNet -v host[,host...] [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-c forwarding_cache_size] [-w worker_threads]");
+		System.out.println("     [-W busy-spin|yield|park]");
+		System.out.println("     [-b egress_batch_size] [-d flush_deadline_usec]");
+		System.out.println("     [-m max_command_length] [-e event_loops]");
+		System.out.println("     [-L log_level[,category=log_level[:sample_rate]]...]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("  with several hosts, " + HOST_PLACEHOLDER
+				+ " in a file name is replaced by the host");
 	}
 }
@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands received frames from the thread reading from the VNS server to a
+ * fixed set of worker threads, each of which processes frames for its
+ * device. Frames are assigned to workers by a hash of their flow (the IPv4
+ * 5-tuple, or the Ethernet addresses for other frames), so frames of the
+ * same flow are always processed in order by the same worker.
+ * <p>
+ * Each worker has its own {@link FrameRing}, filled only by the reader
+ * thread, so handing off a frame is a copy into a preallocated slot.
+ */
+public class Pipeline
+{
+	/** Default number of frames each worker can have waiting */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	/** Default way workers wait for frames */
+	public static final FrameRing.WaitStrategy DEFAULT_WAIT_STRATEGY =
+			FrameRing.WaitStrategy.PARK;
+
+	/** Time (in milliseconds) to wait for each worker to finish when
+	 *  shutting down */
+	public static final long SHUTDOWN_TIMEOUT = 5000;
+
+	/** Length of an untagged Ethernet header */
+	private static final int ETHER_HEADER_LENGTH = 14;
+
+	/**
+	 * A thread processing the frames assigned to it, in arrival order.
+	 */
+	private class Worker extends Thread
+	{
+		final FrameRing ring;
+
+		Worker(int index, int capacity, FrameRing.WaitStrategy waitStrategy)
+		{
+			super(device.getHost() + "-worker-" + index);
+			this.setDaemon(true);
+			this.ring = new FrameRing(capacity, FrameRing.DEFAULT_SLOT_SIZE,
+					waitStrategy);
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					if (!this.ring.consume(device))
+					{ return; }
+				}
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+			}
+		}
+	}
+
+	/** Device whose frames are processed */
+	private final Device device;
+
+	/** Worker threads */
+	private final Worker[] workers;
+
+	/**
+	 * Create and start a pipeline whose workers wait for frames in the
+	 * default way.
+	 * @param device device whose frames are processed
+	 * @param workers number of worker threads
+	 * @param capacity number of frames each worker can have waiting; 
+	 *        rounded up to a power of two
+	 */
+	public Pipeline(Device device, int workers, int capacity)
+	{ this(device, workers, capacity, DEFAULT_WAIT_STRATEGY); }
+
+	/**
+	 * Create and start a pipeline.
+	 * @param device device whose frames are processed
+	 * @param workers number of worker threads
+	 * @param capacity number of frames each worker can have waiting; 
+	 *        rounded up to a power of two
+	 * @param waitStrategy how workers wait when they have no frames
+	 */
+	public Pipeline(Device device, int workers, int capacity,
+			FrameRing.WaitStrategy waitStrategy)
+	{
+		if (workers < 1 || capacity < 1)
+		{ throw new IllegalArgumentException("Invalid workers or capacity"); }
+		this.device = device;
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++)
+		{
+			this.workers[i] = new Worker(i, capacity, waitStrategy);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Queue a received frame for the worker responsible for its flow. The
+	 * frame is copied, so the caller may reuse its buffer. Must only be
+	 * called by one thread.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was queued; false if the worker's queue was
+	 *         full and the frame was dropped
+	 */
+	public boolean submit(ByteBuffer frame, Iface inIface)
+	{
+		Worker worker = this.workers[(flowHash(frame) & 0x7fffffff)
+				% this.workers.length];
+		return worker.ring.offer(frame, inIface);
+	}
+
+	/**
+	 * Compute a hash of a frame's flow. For IPv4 frames the hash covers the
+	 * addresses, the protocol and, for unfragmented TCP and UDP packets, the
+	 * ports; for other frames it covers the Ethernet addresses.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @return hash of the frame's flow
+	 */
+	public static int flowHash(ByteBuffer frame)
+	{
+		int base = frame.position();
+		int len = frame.remaining();
+		if (len < ETHER_HEADER_LENGTH)
+		{ return 0; }
+
+		int h;
+		int ip = base + ETHER_HEADER_LENGTH;
+		if (frame.getShort(base + 12) == (short)0x0800
+				&& len >= ETHER_HEADER_LENGTH + 20)
+		{
+			int headerLength = (frame.get(ip) & 0xf) * 4;
+			int protocol = frame.get(ip + 9) & 0xff;
+			h = frame.getInt(ip + 12) * 31 + frame.getInt(ip + 16);
+			h = h * 31 + protocol;
+			boolean fragment = (frame.getShort(ip + 6) & 0x3fff) != 0;
+			if ((6 == protocol || 17 == protocol) && !fragment
+					&& len >= ETHER_HEADER_LENGTH + headerLength + 4)
+			{ h = h * 31 + frame.getInt(ip + headerLength); }
+		}
+		else
+		{
+			h = frame.getInt(base) * 31 + frame.getShort(base + 4);
+			h = h * 31 + frame.getInt(base + 6);
+			h = h * 31 + frame.getShort(base + 10);
+		}
+
+		// Spread the bits so the low bits select workers evenly
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkerCount()
+	{ return this.workers.length; }
+
+	/**
+	 * @param worker index of a worker
+	 * @return number of frames waiting for the worker
+	 */
+	public int getQueueDepth(int worker)
+	{ return this.workers[worker].ring.getOccupancy(); }
+
+	/**
+	 * @param worker index of a worker
+	 * @return largest number of frames that have waited for the worker at
+	 *         once
+	 */
+	public int getPeakQueueDepth(int worker)
+	{ return this.workers[worker].ring.getHighWater(); }
+
+	/**
+	 * @param worker index of a worker
+	 * @return number of frames processed by the worker
+	 */
+	public long getProcessed(int worker)
+	{ return this.workers[worker].ring.getConsumed(); }
+
+	/**
+	 * @param worker index of a worker
+	 * @return number of frames dropped because the worker's queue was full
+	 */
+	public long getDrops(int worker)
+	{ return this.workers[worker].ring.getDrops(); }
+
+	/**
+	 * Stop the worker threads. Frames already waiting are processed, frames
+	 * submitted from now on are dropped, and the call returns once the 
+	 * workers finish (unless it is made by a worker).
+	 */
+	public void shutdown()
+	{
+		for (Worker worker : this.workers)
+		{ worker.ring.close(); }
+		for (Worker worker : this.workers)
+		{
+			if (worker == Thread.currentThread())
+			{ continue; }
+			try
+			{ worker.join(SHUTDOWN_TIMEOUT); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public String toString()
+	{
+		String result = "Worker\tDepth\tPeak\tProcessed\tDrops\n";
+		for (int i = 0; i < this.workers.length; i++)
+		{
+			result += String.format("%d\t%d\t%d\t%d\t%d\n", i,
+					this.getQueueDepth(i), this.getPeakQueueDepth(i),
+					this.getProcessed(i), this.getDrops(i));
+		}
+		return result;
+	}
+}
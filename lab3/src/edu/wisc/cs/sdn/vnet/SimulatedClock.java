@@ -0,0 +1,180 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock that only moves when told to. Timers run on the thread that
+ * advances the clock, in order of their due time, and in the order they
+ * were scheduled when due at the same time, so a run that schedules the
+ * same timers and advances the clock the same way always behaves the same.
+ * An hour of protocol behavior takes only as long as its timers take to
+ * run.
+ */
+public class SimulatedClock extends Clock
+{
+	/**
+	 * A scheduled task.
+	 */
+	private class SimTimer implements Timer, Comparable<SimTimer>
+	{
+		final Runnable task;
+		final long period;
+		final long seq;
+		long when;
+		boolean cancelled;
+
+		SimTimer(Runnable task, long when, long period, long seq)
+		{
+			this.task = task;
+			this.when = when;
+			this.period = period;
+			this.seq = seq;
+			this.cancelled = false;
+		}
+
+		public void cancel()
+		{
+			synchronized (SimulatedClock.this)
+			{
+				this.cancelled = true;
+				timers.remove(this);
+			}
+		}
+
+		public int compareTo(SimTimer other)
+		{
+			if (this.when != other.when)
+			{ return (this.when < other.when) ? -1 : 1; }
+			return (this.seq < other.seq) ? -1 : (this.seq > other.seq ? 1 : 0);
+		}
+	}
+
+	/** Current time, in milliseconds since the epoch */
+	private volatile long now;
+
+	/** Timers waiting to run, earliest first */
+	private final PriorityQueue<SimTimer> timers;
+
+	/** Order in which the next timer was scheduled */
+	private long nextSeq;
+
+	/** Run after every timer, e.g., to wait for the frames it sent to be
+	 *  handled; null for none */
+	private volatile Runnable settler;
+
+	/**
+	 * Create a clock that starts at a fixed time.
+	 * @param start starting time, in milliseconds since the epoch
+	 */
+	public SimulatedClock(long start)
+	{
+		this.now = start;
+		this.timers = new PriorityQueue<SimTimer>();
+		this.nextSeq = 0;
+		this.settler = null;
+	}
+
+	/**
+	 * @param settler run after every timer, e.g., to wait for the frames it
+	 *        sent to be handled, so that later timers see their effects; null
+	 *        for none
+	 */
+	public void setSettler(Runnable settler)
+	{ this.settler = settler; }
+
+	public long currentTimeMillis()
+	{ return this.now; }
+
+	public long nanoTime()
+	{ return this.now * 1000000; }
+
+	public Timer schedule(Runnable task, long delay)
+	{ return this.add(task, delay, 0); }
+
+	public Timer schedule(Runnable task, long delay, long period)
+	{
+		if (period <= 0)
+		{ throw new IllegalArgumentException("Invalid period " + period); }
+		return this.add(task, delay, period);
+	}
+
+	private synchronized Timer add(Runnable task, long delay, long period)
+	{
+		SimTimer timer = new SimTimer(task, this.now + Math.max(delay, 0),
+				period, this.nextSeq++);
+		this.timers.add(timer);
+		return timer;
+	}
+
+	/**
+	 * Move the clock forward, running every timer that falls due on the way,
+	 * each at its due time.
+	 * @param millis time (in milliseconds) to move forward
+	 */
+	public void advance(long millis)
+	{
+		if (millis < 0)
+		{ throw new IllegalArgumentException("Cannot go back in time"); }
+		long target = this.now + millis;
+		SimTimer timer;
+		while ((timer = this.next(target)) != null)
+		{
+			try
+			{ timer.task.run(); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+
+			synchronized (this)
+			{
+				if (timer.period > 0 && !timer.cancelled)
+				{
+					timer.when += timer.period;
+					this.timers.add(timer);
+				}
+			}
+
+			Runnable settler = this.settler;
+			if (settler != null)
+			{ settler.run(); }
+		}
+		synchronized (this)
+		{ this.now = target; }
+	}
+
+	/**
+	 * Take the earliest timer due by a time, and move the clock to its due
+	 * time.
+	 * @return the timer; null if none is due
+	 */
+	private synchronized SimTimer next(long target)
+	{
+		SimTimer timer = this.timers.peek();
+		if (null == timer || timer.when > target)
+		{ return null; }
+		this.timers.poll();
+		this.now = Math.max(this.now, timer.when);
+		return timer;
+	}
+
+	/**
+	 * Run the timers that are due now, without moving the clock.
+	 */
+	public void runDue()
+	{ this.advance(0); }
+
+	/**
+	 * @return due time (in milliseconds since the epoch) of the next timer;
+	 *         -1 if there are none
+	 */
+	public synchronized long getNextDue()
+	{
+		SimTimer timer = this.timers.peek();
+		return (null == timer) ? -1 : timer.when;
+	}
+
+	/**
+	 * @return number of timers waiting to run
+	 */
+	public synchronized int getPendingCount()
+	{ return this.timers.size(); }
+}
@@ -0,0 +1,39 @@
+package edu.wisc.cs.sdn.vnet;
+
+/**
+ * The wall clock. Timers of every device run on one shared daemon thread,
+ * from a {@link TimerWheel}, so that keeping many timers pending costs
+ * little and each timer costs the same to schedule or cancel however many
+ * others there are.
+ */
+public class SystemClock extends Clock
+{
+	/** Wheel from which timers run */
+	private final TimerWheel wheel;
+
+	/**
+	 * Create a clock with its own timer thread.
+	 */
+	public SystemClock()
+	{
+		this.wheel = new TimerWheel(TimerWheel.DEFAULT_TICK,
+				TimerWheel.DEFAULT_BUCKETS, "clock");
+		this.wheel.start();
+	}
+
+	public long currentTimeMillis()
+	{ return System.currentTimeMillis(); }
+
+	public long nanoTime()
+	{ return System.nanoTime(); }
+
+	public Timer schedule(Runnable task, long delay)
+	{ return this.wheel.schedule(task, delay, 0); }
+
+	public Timer schedule(Runnable task, long delay, long period)
+	{
+		if (period <= 0)
+		{ throw new IllegalArgumentException("Invalid period " + period); }
+		return this.wheel.schedule(task, delay, period);
+	}
+}
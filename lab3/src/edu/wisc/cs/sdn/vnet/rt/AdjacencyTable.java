@@ -0,0 +1,240 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Adjacencies for a router: for each resolved (outgoing interface, next hop)
+ * pair, the Ethernet header with which IPv4 packets sent to that next hop
+ * are rewritten. The header is built once, when the next hop is resolved,
+ * so rewriting a forwarded frame is a single copy.
+ * <p>
+ * An adjacency is invalidated when the ARP mapping for its next hop changes.
+ * It is also treated as stale, and rebuilt on next use, once its interface
+ * is given a new MAC address; {@link Iface#setMacAddress} always installs a
+ * new (immutable) address object, so the change is seen by comparing
+ * references, without comparing bytes on every forwarded packet.
+ * <p>
+ * Lookups take no lock. The adjacencies for a next hop are kept in an array
+ * that is never modified once published; changes build a new array under
+ * the table's lock, so concurrent lookups see either the old or the new one.
+ */
+public class AdjacencyTable implements ArpCache.Listener
+{
+	/** Length of an untagged Ethernet header */
+	public static final int HEADER_LENGTH = 14;
+
+	/**
+	 * A resolved next hop reached through a specific interface.
+	 */
+	public static class Adjacency
+	{
+		private final Iface outIface;
+		private final int nextHop;
+		private final MACAddress srcMac;
+		private final MACAddress dstMac;
+		private final byte[] header;
+		private volatile boolean valid;
+
+		Adjacency(Iface outIface, int nextHop, MACAddress dstMac)
+		{
+			this.outIface = outIface;
+			this.nextHop = nextHop;
+			this.srcMac = outIface.getMacAddress();
+			this.dstMac = dstMac;
+			this.header = new byte[HEADER_LENGTH];
+			ByteBuffer bb = ByteBuffer.wrap(this.header);
+			bb.put(dstMac.toBytes());
+			bb.put(this.srcMac.toBytes());
+			bb.putShort(Ethernet.TYPE_IPv4);
+			this.valid = true;
+		}
+
+		/**
+		 * @return the interface out which packets are sent
+		 */
+		public Iface getInterface()
+		{ return this.outIface; }
+
+		/**
+		 * @return IP address of the next hop
+		 */
+		public int getNextHop()
+		{ return this.nextHop; }
+
+		/**
+		 * @return MAC address of the interface when the header was built
+		 */
+		public MACAddress getSourceMac()
+		{ return this.srcMac; }
+
+		/**
+		 * @return MAC address of the next hop
+		 */
+		public MACAddress getDestinationMac()
+		{ return this.dstMac; }
+
+		/**
+		 * @return true if the next hop's ARP mapping and the interface's MAC
+		 *         address have not changed since the header was built
+		 */
+		public boolean isValid()
+		{ return this.valid && this.outIface.getMacAddress() == this.srcMac; }
+
+		/**
+		 * Overwrite the Ethernet header of an untagged IPv4 frame.
+		 * @param frame buffer holding the frame
+		 * @param index absolute index of the start of the frame
+		 */
+		public void rewrite(ByteBuffer frame, int index)
+		{
+			if (frame.hasArray())
+			{
+				System.arraycopy(this.header, 0, frame.array(),
+						frame.arrayOffset() + index, HEADER_LENGTH);
+			}
+			else
+			{
+				for (int i = 0; i < HEADER_LENGTH; i++)
+				{ frame.put(index + i, this.header[i]); }
+			}
+		}
+
+		public String toString()
+		{
+			return String.format("%s \t%s \t%s", this.outIface.getName(),
+					IPv4.fromIPv4Address(this.nextHop), this.dstMac.toString());
+		}
+	}
+
+	/** Adjacencies; maps a next hop to its adjacencies, at most one per
+	 *  interface */
+	private final ConcurrentHashMap<Integer,Adjacency[]> adjacencies;
+
+	/**
+	 * Create an empty adjacency table.
+	 */
+	public AdjacencyTable()
+	{ this.adjacencies = new ConcurrentHashMap<Integer,Adjacency[]>(); }
+
+	/**
+	 * Get the adjacency for a next hop reached through an interface, building
+	 * it if there is none or the existing one is out of date.
+	 * @param outIface the interface out which packets are sent
+	 * @param nextHop IP address of the next hop
+	 * @param dstMac MAC address of the next hop, in the lower 48 bits
+	 * @return the adjacency
+	 */
+	public Adjacency get(Iface outIface, int nextHop, long dstMac)
+	{
+		Adjacency adj = find(this.adjacencies.get(nextHop), outIface, dstMac);
+		if (adj != null)
+		{ return adj; }
+
+		synchronized(this)
+		{
+			// Another thread may have built the adjacency in the meantime
+			Adjacency[] current = this.adjacencies.get(nextHop);
+			adj = find(current, outIface, dstMac);
+			if (adj != null)
+			{ return adj; }
+
+			// Replace the stale adjacency for the interface, if any
+			adj = new Adjacency(outIface, nextHop, MACAddress.valueOf(dstMac));
+			Adjacency[] updated;
+			int i = indexOf(current, outIface);
+			if (i >= 0)
+			{
+				current[i].valid = false;
+				updated = current.clone();
+				updated[i] = adj;
+			}
+			else if (current != null)
+			{
+				updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = adj;
+			}
+			else
+			{ updated = new Adjacency[] { adj }; }
+			this.adjacencies.put(nextHop, updated);
+			return adj;
+		}
+	}
+
+	/**
+	 * Find a usable adjacency.
+	 * @param adjs adjacencies for a next hop; may be null
+	 * @param outIface the interface out which packets are sent
+	 * @param dstMac MAC address of the next hop, in the lower 48 bits
+	 * @return the adjacency for the interface if it is valid and has the 
+	 *         MAC address; null otherwise
+	 */
+	private static Adjacency find(Adjacency[] adjs, Iface outIface, 
+			long dstMac)
+	{
+		int i = indexOf(adjs, outIface);
+		if (i < 0)
+		{ return null; }
+		Adjacency adj = adjs[i];
+		return (adj.isValid() && adj.dstMac.toLong() == dstMac) ? adj : null;
+	}
+
+	/**
+	 * @param adjs adjacencies for a next hop; may be null
+	 * @param outIface an interface
+	 * @return index of the adjacency for the interface; -1 if there is none
+	 */
+	private static int indexOf(Adjacency[] adjs, Iface outIface)
+	{
+		if (adjs != null)
+		{
+			for (int i = 0; i < adjs.length; i++)
+			{
+				if (adjs[i].outIface == outIface)
+				{ return i; }
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Invalidate every adjacency for a next hop.
+	 * @param nextHop IP address of the next hop
+	 */
+	public synchronized void invalidateNextHop(int nextHop)
+	{
+		Adjacency[] adjs = this.adjacencies.remove(nextHop);
+		if (adjs != null)
+		{
+			for (Adjacency adj : adjs)
+			{ adj.valid = false; }
+		}
+	}
+
+	public void arpChanged(int ip)
+	{ this.invalidateNextHop(ip); }
+
+	/**
+	 * @return number of next hops with at least one adjacency
+	 */
+	public int size()
+	{ return this.adjacencies.size(); }
+
+	public String toString()
+	{
+		String result = "Iface\tNext hop\tMAC\n";
+		for (Adjacency[] adjs : this.adjacencies.values())
+		{
+			for (Adjacency adj : adjs)
+			{ result += adj.toString() + "\n"; }
+		}
+		return result;
+	}
+}
@@ -4,37 +4,224 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
+import edu.wisc.cs.sdn.vnet.Clock;
+
 /**
  * A cache of MAC address to IP address mappings.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Default time (in milliseconds) until a learned mapping expires */
+	public static final long DEFAULT_TIMEOUT = 60000;
+	
+	/** Default time (in milliseconds) before expiry during which a learned
+	 *  mapping is refreshed */
+	public static final long DEFAULT_REFRESH_WINDOW = 15000;
+	
+	/**
+	 * Receives a notification whenever the MAC address for an IP changes.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called after the mapping for an IP address is added, changed or
+		 * removed.
+		 * @param ip IP address whose mapping changed
+		 */
+		void arpChanged(int ip);
+	}
+	
+	/** MAC addresses in the cache; maps an IP address to a MAC address in
+	 *  the lower 48 bits */
+	private IntLongMap macs;
+	
+	/** Expiry times (in milliseconds since the epoch) of entries in the 
+	 *  cache; maps an IP address to its expiry time, or 0 if the entry never
+	 *  expires */
+	private IntLongMap expiries;
+	
+	/** Times (in milliseconds since the epoch) refreshes were claimed; maps
+	 *  an IP address to the time of the last claim */
+	private IntLongMap refreshClaims;
+	
+	/** Listeners notified of changed mappings */
+	private List<Listener> listeners;
+	
+	/** Time (in milliseconds) until a learned mapping expires */
+	private volatile long timeout;
+	
+	/** Time (in milliseconds) before expiry during which a learned mapping
+	 *  is refreshed */
+	private volatile long refreshWindow;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{ 
+		this.macs = new IntLongMap();
+		this.expiries = new IntLongMap();
+		this.refreshClaims = new IntLongMap();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.timeout = DEFAULT_TIMEOUT;
+		this.refreshWindow = DEFAULT_REFRESH_WINDOW;
+	}
+	
+	/**
+	 * Set how long learned mappings live. Mappings loaded from a file never
+	 * expire.
+	 * @param timeout time (in milliseconds) until a learned mapping expires;
+	 *        0 if learned mappings never expire
+	 * @param refreshWindow time (in milliseconds) before expiry during which
+	 *        a learned mapping is refreshed
+	 */
+	public void setTimeout(long timeout, long refreshWindow)
+	{
+		this.timeout = timeout;
+		this.refreshWindow = refreshWindow;
+	}
+	
+	/**
+	 * @return time (in milliseconds) until a learned mapping expires
+	 */
+	public long getTimeout()
+	{ return this.timeout; }
+	
+	/**
+	 * @return time (in milliseconds) before expiry during which a learned
+	 *         mapping is refreshed
+	 */
+	public long getRefreshWindow()
+	{ return this.refreshWindow; }
+	
+	/**
+	 * Register a listener to be notified of changed mappings.
+	 * @param listener listener to notify
+	 */
+	public void addListener(Listener listener)
+	{ this.listeners.add(listener); }
+	
+	/**
+	 * Stop notifying a listener of changed mappings.
+	 * @param listener listener to remove
+	 */
+	public void removeListener(Listener listener)
+	{ this.listeners.remove(listener); }
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair. If the IP address is already mapped to the same MAC address, the
+	 * existing entry's lifetime is extended instead.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{ this.insert(mac.toLong(), ip, this.timeout); }
+	
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair.
+	 * @param mac MAC address (in the lower 48 bits) corresponding to IP 
+	 *        address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeout time (in milliseconds) until the entry expires; 0 if 
+	 *        the entry never expires
+	 */
+	private void insert(long mac, int ip, long timeout)
+	{ 
+		boolean changed;
+		synchronized(this)
+		{
+			long oldMac = this.macs.get(ip);
+			long oldExpires = this.expiries.get(ip);
+			
+			// A static entry for the same mapping is left as is
+			if (oldMac == mac && 0 == oldExpires && timeout != 0)
+			{ return; }
+			
+			// Publish the expiry before the MAC, so readers that find the MAC
+			// also find its expiry
+			long expires = (0 == timeout) 
+					? 0 : Clock.get().currentTimeMillis() + timeout;
+			this.expiries.put(ip, expires);
+			this.macs.put(ip, mac);
+			this.refreshClaims.remove(ip);
+			changed = (oldMac != mac);
+		}
+		if (changed)
+		{ this.notifyListeners(ip); }
+	}
+	
+	/**
+	 * Update the entry for an IP address, if one exists, with a MAC address
+	 * seen in traffic. A static entry is left as is.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @return true if a learned entry for the IP address existed and was 
+	 *         refreshed
+	 */
+	public boolean refresh(MACAddress mac, int ip)
+	{
+		if (this.lookupMac(ip) == IntLongMap.NO_VALUE 
+				|| 0 == this.expiries.get(ip))
+		{ return false; }
+		this.insert(mac.toLong(), ip, this.timeout);
+		return true;
+	}
+	
+	/**
+	 * Notify listeners that the mapping for an IP address changed.
+	 * @param ip IP address whose mapping changed
+	 */
+	private void notifyListeners(int ip)
+	{
+		for (Listener listener : this.listeners)
+		{ listener.arpChanged(ip); }
+	}
+	
+	/**
+	 * Lookup the MAC address for an IP address without allocating.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address in the lower 48 bits; 
+	 *         {@link IntLongMap#NO_VALUE} if none exists
+	 */
+	public long lookupMac(int ip)
+	{
+		long mac = this.macs.get(ip);
+		if (mac != IntLongMap.NO_VALUE)
+		{
+			long expires = this.expiries.get(ip);
+			if (expires != 0 && Clock.get().currentTimeMillis() >= expires)
+			{
+				this.expire(ip, expires);
+				return IntLongMap.NO_VALUE;
+			}
+		}
+		return mac;
+	}
+	
+	/**
+	 * Get the expiry time of an entry. An entry's expiry is added before its
+	 * MAC address and removed after it, so callers that need both must call
+	 * this before {@link #lookupMac}, and treat {@link IntLongMap#NO_VALUE} 
+	 * as a miss.
+	 * @param ip IP address whose entry is desired
+	 * @return time (in milliseconds since the epoch) the entry expires; 0 if
+	 *         the entry never expires; {@link IntLongMap#NO_VALUE} if no 
+	 *         entry exists
+	 */
+	public long getExpires(int ip)
+	{ return this.expiries.get(ip); }
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +229,76 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{ 
+		long expires = this.expiries.get(ip);
+		if (IntLongMap.NO_VALUE == expires)
+		{ return null; }
+		long mac = this.lookupMac(ip);
+		if (IntLongMap.NO_VALUE == mac)
+		{ return null; }
+		return new ArpEntry(MACAddress.valueOf(mac), ip, expires); 
+	}
+	
+	/**
+	 * Claim the right to refresh an entry. An entry needs a refresh once it
+	 * is close to expiry; a claim is granted to at most one caller per retry
+	 * interval, so a hot entry triggers one refresh at a time.
+	 * @param ip IP address of the entry
+	 * @param now current time (in milliseconds since the epoch)
+	 * @param retryInterval time (in milliseconds) before an unanswered 
+	 *        refresh may be claimed again
+	 * @return true if the caller should refresh the entry
+	 */
+	public boolean claimRefresh(int ip, long now, long retryInterval)
+	{
+		long expires = this.expiries.get(ip);
+		if (expires <= 0 || now < expires - this.refreshWindow)
+		{ return false; }
+		long claimed = this.refreshClaims.get(ip);
+		if (IntLongMap.NO_VALUE == claimed)
+		{ return this.refreshClaims.putIfAbsent(ip, now); }
+		if (now - claimed < retryInterval)
+		{ return false; }
+		return this.refreshClaims.compareAndSet(ip, claimed, now);
+	}
+	
+	/**
+	 * Remove an expired entry, unless it was renewed in the meantime.
+	 * @param ip IP address of the entry
+	 * @param expires expiry time of the entry when it was found expired
+	 */
+	private void expire(int ip, long expires)
+	{
+		synchronized(this)
+		{
+			if (this.expiries.get(ip) != expires)
+			{ return; }
+			this.macs.remove(ip);
+			this.expiries.remove(ip);
+			this.refreshClaims.remove(ip);
+		}
+		this.notifyListeners(ip);
+	}
+	
+	/**
+	 * Remove every expired entry.
+	 * @return number of entries removed
+	 */
+	public int purgeExpired()
+	{
+		long now = Clock.get().currentTimeMillis();
+		int removed = 0;
+		for (int ip : this.expiries.keys())
+		{
+			long expires = this.expiries.get(ip);
+			if (expires > 0 && now >= expires)
+			{
+				this.expire(ip, expires);
+				removed++;
+			}
+		}
+		return removed;
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -65,6 +321,11 @@ public class ArpCache
 			return false;
 		}
 		
+		// Collect every entry before adding them to the cache in bulk
+		int count = 0;
+		int[] ips = new int[16];
+		long[] macs = new long[16];
+		
 		while (true)
 		{
 			// Read an ARP entry from the file
@@ -117,20 +378,41 @@ public class ArpCache
 				return false;
 			}
 			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			// Add an entry to the batch
+			if (count == ips.length)
+			{
+				ips = Arrays.copyOf(ips, count * 2);
+				macs = Arrays.copyOf(macs, count * 2);
+			}
+			ips[count] = ip;
+			macs[count] = mac.toLong();
+			count++;
 		}
 	
 		// Close the file
 		try { reader.close(); } catch (IOException f) {};
+		
+		// Add the entries to the ARP cache; static entries never expire
+		long[] never = new long[count];
+		synchronized(this)
+		{
+			this.expiries.putAll(ips, never, count);
+			this.macs.putAll(ips, macs, count);
+		}
+		for (int i = 0; i < count; i++)
+		{ this.notifyListeners(ips[i]); }
 		return true;
 	}
 	
 	public String toString()
 	{
         String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
+        for (int ip : this.macs.keys())
+        { 
+        	ArpEntry entry = this.lookup(ip);
+        	if (entry != null)
+        	{ result += entry.toString()+"\n"; }
+        }
 	    return result;
 	}
 }
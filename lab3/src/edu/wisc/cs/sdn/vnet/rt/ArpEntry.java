@@ -15,19 +15,31 @@ public class ArpEntry
 	/** IP address corresponding to MAC address */
 	private int ip;
 	
-	/** Time (in milliseconds since the epoch) the mapping was created */
-	private long timeAdded;
+	/** Time (in milliseconds since the epoch) the mapping expires; 0 if the
+	 *  mapping never expires */
+	private long expires;
 	
 	/**
-	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * Create an ARP table entry that maps an IP address to a MAC address and
+	 * never expires.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, 0); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param expires time (in milliseconds since the epoch) the mapping 
+	 *        expires; 0 if the mapping never expires
+	 */
+	public ArpEntry(MACAddress mac, int ip, long expires)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.expires = expires;
 	}
 	
 	/**
@@ -43,10 +55,11 @@ public class ArpEntry
 	{ return this.ip; }
 	
 	/**
-	 * @return time (in milliseconds since the epoch) the mapping was created
+	 * @return time (in milliseconds since the epoch) the mapping expires; 0
+	 *         if the mapping never expires
 	 */
-	public long getTimeAdded()
-	{ return this.timeAdded; }
+	public long getExpires()
+	{ return this.expires; }
 	
 	public String toString()
 	{
@@ -0,0 +1,719 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.Clock;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * Resolves next hop IP addresses for a router. Packets to an unresolved next
+ * hop are queued while ARP requests are sent once per second; after three
+ * unanswered requests the queued packets are answered with ICMP host
+ * unreachable. All pending resolutions are timers on the {@link Clock}, so
+ * the number of threads does not grow with the number of unresolved hosts.
+ * <p>
+ * Queued packets are stored as serialized frames. Both the queue for each
+ * next hop and the total across all next hops are capped by packet count
+ * and by bytes; a packet that exceeds a cap is dropped according to the
+ * configured {@link DropPolicy}.
+ * <p>
+ * The resolver also listens for route changes: every gateway referenced by a
+ * route is resolved as soon as the route is installed, and kept resolved for
+ * as long as any route references it, so the first packets on a route do not
+ * wait for ARP.
+ * <p>
+ * A next hop that could not be resolved is held down for a while: packets
+ * to it are answered right away with ICMP host unreachable instead of being
+ * queued, and it is not ARPed again until the hold-down ends. All ICMP host
+ * unreachable messages sent by the resolver are rate limited.
+ */
+public class ArpResolver implements RouteTable.Listener
+{
+	/** Log for ARP resolution */
+	private static final Log.Category log = Log.getCategory("arp");
+
+	/** Number of attempts to send an ARP request before giving up on a next
+	 *  hop */
+	public static final int MAX_REQUESTS = 3;
+
+	/** Time (in milliseconds) between ARP requests for a next hop */
+	public static final long REQUEST_INTERVAL = 1000;
+
+	/** Time (in milliseconds) between sweeps for expired ARP cache entries */
+	public static final long PURGE_INTERVAL = 10000;
+
+	/** Time (in milliseconds) between checks that referenced gateways are
+	 *  still resolved */
+	public static final long KEEP_WARM_INTERVAL = 5000;
+
+	/** Default time (in milliseconds) an unresolvable next hop is held 
+	 *  down */
+	public static final long DEFAULT_HOLD_DOWN = 20000;
+
+	/** Default limit on ICMP host unreachable messages sent per second, and
+	 *  burst size */
+	public static final double DEFAULT_UNREACHABLE_RATE = 100;
+	public static final int DEFAULT_UNREACHABLE_BURST = 50;
+
+	/** Default caps on queued packets and bytes */
+	public static final int DEFAULT_MAX_PACKETS_PER_HOP = 64;
+	public static final int DEFAULT_MAX_BYTES_PER_HOP = 64 * 1514;
+	public static final int DEFAULT_MAX_PACKETS = 1024;
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1514;
+
+	/**
+	 * What to drop when a queue is full.
+	 */
+	public enum DropPolicy
+	{
+		/** Drop the arriving packet */
+		TAIL_DROP,
+		/** Drop the oldest packets queued for the same next hop to make room
+		 *  for the arriving packet */
+		DROP_OLDEST
+	}
+
+	/**
+	 * A packet waiting for its next hop to be resolved.
+	 */
+	private static class QueuedPacket
+	{
+		final byte[] frame;
+		final Iface inIface;
+		final Iface outIface;
+
+		QueuedPacket(byte[] frame, Iface inIface, Iface outIface)
+		{
+			this.frame = frame;
+			this.inIface = inIface;
+			this.outIface = outIface;
+		}
+
+		Ethernet decode()
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(this.frame, 0, this.frame.length);
+			return etherPacket;
+		}
+	}
+
+	/**
+	 * State for a next hop that is being resolved.
+	 */
+	private static class Pending
+	{
+		final int nextHop;
+		final Iface outIface;
+		final Deque<QueuedPacket> packets;
+		int bytes;
+		int attempts;
+		int requestsSent;
+		Clock.Timer timer;
+
+		Pending(int nextHop, Iface outIface)
+		{
+			this.nextHop = nextHop;
+			this.outIface = outIface;
+			this.packets = new ArrayDeque<QueuedPacket>();
+			this.bytes = 0;
+			this.attempts = 0;
+			this.requestsSent = 0;
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * A gateway referenced by one or more routes.
+	 */
+	private static class Gateway
+	{
+		final int ip;
+		Iface outIface;
+		int references;
+
+		Gateway(int ip, Iface outIface)
+		{
+			this.ip = ip;
+			this.outIface = outIface;
+			this.references = 0;
+		}
+	}
+
+	/** Router on whose behalf next hops are resolved */
+	private final Router router;
+
+	/** Clock on which ARP requests are sent and resolutions timed out */
+	private final Clock clock;
+
+	/** Timers that purge expired entries and keep gateways resolved */
+	private final Clock.Timer purgeTimer;
+	private final Clock.Timer keepWarmTimer;
+
+	/** Next hops being resolved; maps an IP address to its state; also
+	 *  guards all queue accounting */
+	private final IntObjectMap<Pending> pending;
+
+	/** Caps on queued packets */
+	private int maxPacketsPerHop;
+	private int maxBytesPerHop;
+	private int maxPackets;
+	private int maxBytes;
+	private DropPolicy dropPolicy;
+
+	/** Packets and bytes queued across all next hops */
+	private int queuedPackets;
+	private int queuedBytes;
+
+	/** Drop counters */
+	private long tailDrops;
+	private long oldestDrops;
+
+	/** Gateways referenced by routes; maps an IP address to the gateway */
+	private final IntObjectMap<Gateway> gateways;
+
+	/** Next hops that could not be resolved; maps an IP address to the time
+	 *  (in milliseconds since the epoch) its hold-down ends */
+	private final IntLongMap unreachable;
+
+	/** Time (in milliseconds) an unresolvable next hop is held down */
+	private volatile long holdDown;
+
+	/** Limit on ICMP host unreachable messages */
+	private volatile TokenBucket unreachableLimiter;
+
+	/** Number of packets answered from the negative cache */
+	private long heldDownPackets;
+
+	/**
+	 * Create a resolver for a router.
+	 * @param router router on whose behalf next hops are resolved
+	 */
+	public ArpResolver(final Router router)
+	{
+		this.router = router;
+		this.pending = new IntObjectMap<Pending>();
+		this.gateways = new IntObjectMap<Gateway>();
+		this.unreachable = new IntLongMap();
+		this.holdDown = DEFAULT_HOLD_DOWN;
+		this.unreachableLimiter = new TokenBucket(DEFAULT_UNREACHABLE_RATE,
+				DEFAULT_UNREACHABLE_BURST);
+		this.maxPacketsPerHop = DEFAULT_MAX_PACKETS_PER_HOP;
+		this.maxBytesPerHop = DEFAULT_MAX_BYTES_PER_HOP;
+		this.maxPackets = DEFAULT_MAX_PACKETS;
+		this.maxBytes = DEFAULT_MAX_BYTES;
+		this.dropPolicy = DropPolicy.TAIL_DROP;
+		this.clock = Clock.get();
+		
+		// Remove expired ARP cache entries that are no longer looked up
+		this.purgeTimer = this.clock.schedule(new Runnable() {
+					public void run()
+					{ 
+						router.getArpCache().purgeExpired(); 
+						purgeUnreachable();
+					}
+				}, PURGE_INTERVAL, PURGE_INTERVAL);
+		
+		// Keep the gateways of installed routes resolved
+		this.keepWarmTimer = this.clock.schedule(new Runnable() {
+					public void run()
+					{ keepWarm(); }
+				}, KEEP_WARM_INTERVAL, KEEP_WARM_INTERVAL);
+	}
+
+	/**
+	 * Set the caps on queued packets.
+	 * @param packetsPerHop maximum packets queued for one next hop
+	 * @param bytesPerHop maximum bytes queued for one next hop
+	 * @param packets maximum packets queued across all next hops
+	 * @param bytes maximum bytes queued across all next hops
+	 */
+	public void setQueueLimits(int packetsPerHop, int bytesPerHop,
+			int packets, int bytes)
+	{
+		synchronized(this.pending)
+		{
+			this.maxPacketsPerHop = packetsPerHop;
+			this.maxBytesPerHop = bytesPerHop;
+			this.maxPackets = packets;
+			this.maxBytes = bytes;
+		}
+	}
+
+	/**
+	 * @param dropPolicy what to drop when a queue is full
+	 */
+	public void setDropPolicy(DropPolicy dropPolicy)
+	{
+		synchronized(this.pending)
+		{ this.dropPolicy = dropPolicy; }
+	}
+
+	/**
+	 * @param holdDown time (in milliseconds) an unresolvable next hop is 
+	 *        held down; 0 disables the negative cache
+	 */
+	public void setHoldDown(long holdDown)
+	{ this.holdDown = holdDown; }
+
+	/**
+	 * Limit the rate at which ICMP host unreachable messages are sent.
+	 * @param ratePerSecond messages permitted per second
+	 * @param burst messages permitted in a burst
+	 */
+	public void setUnreachableLimit(double ratePerSecond, int burst)
+	{ this.unreachableLimiter = new TokenBucket(ratePerSecond, burst); }
+
+	/**
+	 * Check whether a next hop is held down after failing to resolve.
+	 * @param nextHop IP address of the next hop
+	 * @return true if the next hop is held down
+	 */
+	public boolean isHeldDown(int nextHop)
+	{
+		long until = this.unreachable.get(nextHop);
+		if (IntLongMap.NO_VALUE == until)
+		{ return false; }
+		if (this.clock.currentTimeMillis() < until)
+		{ return true; }
+		this.unreachable.remove(nextHop);
+		return false;
+	}
+
+	/**
+	 * Remove next hops whose hold-down has ended.
+	 */
+	private void purgeUnreachable()
+	{
+		long now = this.clock.currentTimeMillis();
+		for (int ip : this.unreachable.keys())
+		{
+			long until = this.unreachable.get(ip);
+			if (until != IntLongMap.NO_VALUE && now >= until)
+			{ this.unreachable.remove(ip); }
+		}
+	}
+
+	/**
+	 * Send an ICMP host unreachable for a packet, unless the rate limit has
+	 * been reached.
+	 * @param etherPacket the packet that could not be delivered
+	 * @param inIface the interface on which the packet was received
+	 */
+	private void sendUnreachable(Ethernet etherPacket, Iface inIface)
+	{
+		if (this.unreachableLimiter.tryAcquire())
+		{ this.router.ICMPmake(etherPacket, inIface, (byte)3, (byte)1); }
+	}
+
+	/**
+	 * Queue a packet until its next hop is resolved, starting resolution if
+	 * the next hop is not already being resolved. If the next hop is held
+	 * down, the packet is answered with ICMP host unreachable instead.
+	 * @param etherPacket the packet to send once the next hop is resolved
+	 * @param inIface the interface on which the packet was received
+	 * @param nextHop IP address of the next hop
+	 * @param outIface the interface out which the packet should be sent
+	 */
+	public void enqueue(Ethernet etherPacket, Iface inIface, int nextHop,
+			Iface outIface)
+	{
+		if (this.isHeldDown(nextHop))
+		{
+			synchronized(this.pending)
+			{ this.heldDownPackets++; }
+			this.sendUnreachable(etherPacket, inIface);
+			return;
+		}
+
+		// Packets the router generates itself have no destination yet; it is
+		// filled in once the next hop is resolved
+		if (null == etherPacket.getDestinationMACAddress())
+		{ etherPacket.setDestinationMACAddress(new byte[6]); }
+		byte[] frame = etherPacket.serialize();
+		synchronized(this.pending)
+		{
+			Pending state = this.pending.get(nextHop);
+			if (null == state)
+			{ state = this.start(nextHop, outIface); }
+
+			// Make room under the caps, or drop the arriving packet
+			if (DropPolicy.DROP_OLDEST == this.dropPolicy)
+			{
+				while (!state.packets.isEmpty()
+						&& this.overLimit(state, frame.length))
+				{
+					QueuedPacket oldest = state.packets.removeFirst();
+					this.account(state, -oldest.frame.length);
+					this.oldestDrops++;
+				}
+			}
+			if (this.overLimit(state, frame.length))
+			{
+				this.tailDrops++;
+				return;
+			}
+
+			state.packets.addLast(new QueuedPacket(frame, inIface, outIface));
+			this.account(state, frame.length);
+		}
+	}
+
+	/**
+	 * Start resolving a next hop. Must be called while holding the pending
+	 * lock.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface the interface out which the next hop is reached
+	 * @return state of the next hop
+	 */
+	private Pending start(int nextHop, Iface outIface)
+	{
+		final Pending state = new Pending(nextHop, outIface);
+		this.pending.put(nextHop, state);
+		state.timer = this.clock.schedule(
+				new Runnable() {
+					public void run()
+					{ retry(state); }
+				}, 0, REQUEST_INTERVAL);
+		return state;
+	}
+
+	/**
+	 * Resolve a next hop without queueing a packet, unless it is already
+	 * being resolved.
+	 * @param nextHop IP address of the next hop
+	 * @param outIface the interface out which the next hop is reached
+	 */
+	public void resolve(int nextHop, Iface outIface)
+	{
+		synchronized(this.pending)
+		{
+			if (!this.pending.containsKey(nextHop))
+			{ this.start(nextHop, outIface); }
+		}
+	}
+
+	/**
+	 * @param nextHop IP address of the next hop
+	 * @return true if the next hop is currently being resolved
+	 */
+	public boolean isResolving(int nextHop)
+	{
+		synchronized(this.pending)
+		{ return this.pending.containsKey(nextHop); }
+	}
+
+	/**
+	 * @param state next hop the packet would be queued for
+	 * @param length length of the packet
+	 * @return true if queueing the packet would exceed a cap
+	 */
+	private boolean overLimit(Pending state, int length)
+	{
+		return (state.packets.size() + 1 > this.maxPacketsPerHop)
+				|| (state.bytes + length > this.maxBytesPerHop)
+				|| (this.queuedPackets + 1 > this.maxPackets)
+				|| (this.queuedBytes + length > this.maxBytes);
+	}
+
+	/**
+	 * Update queue accounting for a packet added to or removed from a queue.
+	 * @param state next hop whose queue changed
+	 * @param length length of the packet; negative if it was removed
+	 */
+	private void account(Pending state, int length)
+	{
+		int packets = (length < 0) ? -1 : 1;
+		state.bytes += length;
+		this.queuedBytes += length;
+		this.queuedPackets += packets;
+	}
+
+	/**
+	 * Remove the state for a next hop, releasing its queued packets from the
+	 * global accounting. Must be called while holding the pending lock.
+	 * @param state state of the next hop
+	 */
+	private void release(Pending state)
+	{
+		this.pending.remove(state.nextHop);
+		state.timer.cancel();
+		this.queuedPackets -= state.packets.size();
+		this.queuedBytes -= state.bytes;
+	}
+
+	/**
+	 * Send the packets waiting for a next hop that has been resolved.
+	 * @param ip IP address of the next hop
+	 * @param mac MAC address of the next hop
+	 */
+	public void resolved(int ip, MACAddress mac)
+	{
+		Pending state;
+		synchronized(this.pending)
+		{
+			this.unreachable.remove(ip);
+			state = this.pending.get(ip);
+			if (null == state)
+			{ return; }
+			this.release(state);
+		}
+
+		// Fill in the destination MAC and send each interface's packets in
+		// one batch
+		byte[] macBytes = mac.toBytes();
+		while (!state.packets.isEmpty())
+		{
+			Iface outIface = state.packets.peekFirst().outIface;
+			List<ByteBuffer> batch = new ArrayList<ByteBuffer>(
+					state.packets.size());
+			Iterator<QueuedPacket> it = state.packets.iterator();
+			while (it.hasNext())
+			{
+				QueuedPacket packet = it.next();
+				if (packet.outIface != outIface)
+				{ continue; }
+				System.arraycopy(macBytes, 0, packet.frame, 0, macBytes.length);
+				batch.add(ByteBuffer.wrap(packet.frame));
+				it.remove();
+			}
+			if (!this.router.sendFrames(batch, outIface))
+			{ log.warn("Error sending queued packets out %s", outIface); }
+		}
+	}
+
+	/**
+	 * Refresh the ARP cache entry for a next hop that is close to expiry by
+	 * sending a unicast ARP request to its known MAC address in the
+	 * background. Packets keep using the entry until the reply renews it.
+	 * @param ip IP address of the next hop
+	 * @param mac MAC address currently cached for the next hop, in the lower
+	 *        48 bits
+	 * @param outIface the interface out which the next hop is reached
+	 */
+	public void refresh(final int ip, final long mac, final Iface outIface)
+	{
+		this.clock.execute(new Runnable() {
+			public void run()
+			{ router.sendARPRequest(outIface, ip, mac); }
+		});
+	}
+	
+	/**
+	 * Send the next ARP request for a next hop, or give up on it after enough
+	 * attempts. The next hop is held down only if a request actually went
+	 * out and was never answered; requests refused by the rate limit do not
+	 * count.
+	 * @param state state of the next hop
+	 */
+	private void retry(Pending state)
+	{
+		boolean giveUp;
+		synchronized(this.pending)
+		{
+			// Stop if the next hop was resolved in the meantime
+			if (this.pending.get(state.nextHop) != state)
+			{ return; }
+
+			giveUp = (state.attempts >= MAX_REQUESTS);
+			if (giveUp)
+			{ 
+				this.release(state); 
+				if (this.holdDown > 0 && state.requestsSent > 0)
+				{
+					this.unreachable.put(state.nextHop, 
+							this.clock.currentTimeMillis() + this.holdDown);
+				}
+			}
+			else
+			{ state.attempts++; }
+		}
+
+		if (!giveUp)
+		{
+			if (this.router.sendARPRequest(state.outIface, state.nextHop, 
+					Router.BROADCAST_MAC))
+			{
+				synchronized(this.pending)
+				{ state.requestsSent++; }
+			}
+			return;
+		}
+
+		// No response, so send an ICMP host unreachable for each packet
+		for (QueuedPacket packet : state.packets)
+		{ this.sendUnreachable(packet.decode(), packet.inIface); }
+	}
+
+	/**
+	 * @return number of next hops currently being resolved
+	 */
+	public int getPendingCount()
+	{
+		synchronized(this.pending)
+		{ return this.pending.size(); }
+	}
+
+	/**
+	 * @return number of packets queued across all next hops
+	 */
+	public int getQueuedPackets()
+	{
+		synchronized(this.pending)
+		{ return this.queuedPackets; }
+	}
+
+	/**
+	 * @return number of bytes queued across all next hops
+	 */
+	public int getQueuedBytes()
+	{
+		synchronized(this.pending)
+		{ return this.queuedBytes; }
+	}
+
+	/**
+	 * @return number of arriving packets dropped because a queue was full
+	 */
+	public long getTailDrops()
+	{
+		synchronized(this.pending)
+		{ return this.tailDrops; }
+	}
+
+	/**
+	 * @return number of queued packets dropped to make room for newer ones
+	 */
+	public long getOldestDrops()
+	{
+		synchronized(this.pending)
+		{ return this.oldestDrops; }
+	}
+
+	public void routeChanged(RouteEntry oldEntry, RouteEntry newEntry)
+	{
+		Gateway added = null;
+		synchronized(this.gateways)
+		{
+			if (oldEntry != null && oldEntry.getGatewayAddress() != 0)
+			{
+				Gateway gateway = this.gateways.get(
+						oldEntry.getGatewayAddress());
+				if (gateway != null && --gateway.references <= 0)
+				{ this.gateways.remove(gateway.ip); }
+			}
+			if (newEntry != null && newEntry.getGatewayAddress() != 0)
+			{
+				Gateway gateway = this.gateways.get(
+						newEntry.getGatewayAddress());
+				if (null == gateway)
+				{
+					gateway = new Gateway(newEntry.getGatewayAddress(),
+							newEntry.getInterface());
+					this.gateways.put(gateway.ip, gateway);
+					added = gateway;
+				}
+				gateway.outIface = newEntry.getInterface();
+				gateway.references++;
+			}
+		}
+
+		// Resolve a newly referenced gateway right away
+		if (added != null)
+		{
+			final int ip = added.ip;
+			final Iface outIface = added.outIface;
+			this.clock.execute(new Runnable() {
+				public void run()
+				{ keepWarm(ip, outIface); }
+			});
+		}
+	}
+
+	/**
+	 * Make sure every gateway referenced by a route is resolved.
+	 */
+	private void keepWarm()
+	{
+		List<Gateway> gateways;
+		synchronized(this.gateways)
+		{ gateways = this.gateways.values(); }
+		for (Gateway gateway : gateways)
+		{ this.keepWarm(gateway.ip, gateway.outIface); }
+	}
+
+	/**
+	 * Resolve a gateway if its ARP cache entry is missing, or refresh the
+	 * entry if it is close to expiry.
+	 * @param ip IP address of the gateway
+	 * @param outIface the interface out which the gateway is reached
+	 */
+	private void keepWarm(int ip, Iface outIface)
+	{
+		ArpCache arpCache = this.router.getArpCache();
+		long mac = arpCache.lookupMac(ip);
+		if (IntLongMap.NO_VALUE == mac)
+		{
+			if (!this.isHeldDown(ip))
+			{ this.resolve(ip, outIface); }
+			return;
+		}
+		if (arpCache.claimRefresh(ip, this.clock.currentTimeMillis(), 
+				REQUEST_INTERVAL))
+		{ this.router.sendARPRequest(outIface, ip, mac); }
+	}
+
+	/**
+	 * @return number of next hops currently held down
+	 */
+	public int getHeldDownCount()
+	{ return this.unreachable.size(); }
+
+	/**
+	 * @return number of packets answered right away because their next hop
+	 *         was held down
+	 */
+	public long getHeldDownPackets()
+	{
+		synchronized(this.pending)
+		{ return this.heldDownPackets; }
+	}
+
+	/**
+	 * @return number of ICMP host unreachable messages suppressed by the 
+	 *         rate limit
+	 */
+	public long getUnreachableSuppressed()
+	{ return this.unreachableLimiter.getDenied(); }
+
+	/**
+	 * @return number of gateways referenced by routes
+	 */
+	public int getGatewayCount()
+	{
+		synchronized(this.gateways)
+		{ return this.gateways.size(); }
+	}
+
+	/**
+	 * Stop the resolver's timers; pending packets are discarded.
+	 */
+	public void shutdown()
+	{
+		this.purgeTimer.cancel();
+		this.keepWarmTimer.cancel();
+		synchronized(this.pending)
+		{
+			for (Pending state : this.pending.values())
+			{ this.release(state); }
+		}
+	}
+}
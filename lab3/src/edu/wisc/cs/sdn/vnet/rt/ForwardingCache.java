@@ -0,0 +1,267 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A bounded cache of forwarding decisions for recently seen destination IP
+ * addresses, so packets to hot destinations skip the route table and ARP
+ * cache lookups. The cache is direct-mapped: each destination hashes to one
+ * slot, and a new destination evicts whatever occupied its slot.
+ * <p>
+ * Entries are invalidated when a route covering the destination changes, or
+ * when the ARP mapping for the next hop changes. Every invalidation bumps a
+ * generation number; a decision computed before an invalidation is never
+ * inserted after it.
+ */
+public class ForwardingCache implements RouteTable.Listener, ArpCache.Listener
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * A cached forwarding decision for one destination IP address.
+	 */
+	public static class Entry
+	{
+		private final int dstIp;
+		private final AdjacencyTable.Adjacency adjacency;
+		private final long arpExpires;
+
+		Entry(int dstIp, AdjacencyTable.Adjacency adjacency, long arpExpires)
+		{
+			this.dstIp = dstIp;
+			this.adjacency = adjacency;
+			this.arpExpires = arpExpires;
+		}
+
+		/**
+		 * @return destination IP address the decision applies to
+		 */
+		public int getDestinationAddress()
+		{ return this.dstIp; }
+
+		/**
+		 * @return the router interface out which packets should be sent
+		 */
+		public Iface getInterface()
+		{ return this.adjacency.getInterface(); }
+
+		/**
+		 * @return IP address of the next hop
+		 */
+		public int getNextHop()
+		{ return this.adjacency.getNextHop(); }
+
+		/**
+		 * @return adjacency for the next hop, holding the Ethernet header 
+		 *         with which packets are rewritten
+		 */
+		public AdjacencyTable.Adjacency getAdjacency()
+		{ return this.adjacency; }
+
+		/**
+		 * @return time (in milliseconds since the epoch) the next hop's ARP
+		 *         cache entry expired when the decision was made; 0 if it 
+		 *         never expires
+		 */
+		public long getArpExpires()
+		{ return this.arpExpires; }
+
+		public String toString()
+		{
+			return String.format("%s \t%s", IPv4.fromIPv4Address(this.dstIp),
+					this.adjacency.toString());
+		}
+	}
+
+	/** Slots in the cache; a slot is null if it is empty */
+	private final AtomicReferenceArray<Entry> slots;
+
+	/** Mask applied to a hashed destination to select a slot */
+	private final int mask;
+
+	/** Number of invalidations performed so far */
+	private final AtomicLong generation;
+
+	/** Counters for sizing the cache */
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final LongAdder invalidations;
+
+	/**
+	 * Create an empty cache.
+	 * @param capacity maximum number of cached destinations; rounded up to a
+	 *        power of two
+	 */
+	public ForwardingCache(int capacity)
+	{
+		if (capacity < 1)
+		{ throw new IllegalArgumentException("Invalid capacity " + capacity); }
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{ size <<= 1; }
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+		this.generation = new AtomicLong();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+		this.evictions = new LongAdder();
+		this.invalidations = new LongAdder();
+	}
+
+	/**
+	 * @param ip destination IP address
+	 * @return slot for the destination
+	 */
+	private int slot(int ip)
+	{
+		int h = ip * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & this.mask;
+	}
+
+	/**
+	 * Lookup the cached forwarding decision for a destination.
+	 * @param dstIp destination IP address
+	 * @return the cached decision; null if none exists
+	 */
+	public Entry lookup(int dstIp)
+	{
+		Entry entry = this.slots.get(this.slot(dstIp));
+		if (entry != null && entry.dstIp == dstIp)
+		{
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * @return current generation; pass to {@link #insert} once the
+	 *         forwarding decision has been computed
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
+
+	/**
+	 * Cache a forwarding decision, unless the cache was invalidated since
+	 * the decision's inputs were read.
+	 * @param dstIp destination IP address
+	 * @param adjacency adjacency for the next hop
+	 * @param arpExpires time (in milliseconds since the epoch) the next 
+	 *        hop's ARP cache entry expires; 0 if it never expires
+	 * @param generation generation read before the route table lookup
+	 * @return the forwarding decision, whether or not it was cached
+	 */
+	public Entry insert(int dstIp, AdjacencyTable.Adjacency adjacency,
+			long arpExpires, long generation)
+	{
+		Entry entry = new Entry(dstIp, adjacency, arpExpires);
+		if (this.generation.get() != generation)
+		{ return entry; }
+		int idx = this.slot(dstIp);
+		Entry old = this.slots.getAndSet(idx, entry);
+		if (old != null && old.dstIp != dstIp)
+		{ this.evictions.increment(); }
+
+		// An invalidation may have scanned the slot before the entry landed
+		if (this.generation.get() != generation)
+		{ this.slots.compareAndSet(idx, entry, null); }
+		return entry;
+	}
+
+	/**
+	 * Remove every cached destination covered by a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 */
+	public void invalidatePrefix(int dstIp, int maskIp)
+	{
+		this.generation.incrementAndGet();
+		this.invalidations.increment();
+		int prefix = dstIp & maskIp;
+		for (int i = 0; i < this.slots.length(); i++)
+		{
+			Entry entry = this.slots.get(i);
+			if (entry != null && (entry.dstIp & maskIp) == prefix)
+			{ this.slots.compareAndSet(i, entry, null); }
+		}
+	}
+
+	/**
+	 * Remove every cached destination reached through a next hop.
+	 * @param nextHop IP address of the next hop
+	 */
+	public void invalidateNextHop(int nextHop)
+	{
+		this.generation.incrementAndGet();
+		this.invalidations.increment();
+		for (int i = 0; i < this.slots.length(); i++)
+		{
+			Entry entry = this.slots.get(i);
+			if (entry != null && entry.getNextHop() == nextHop)
+			{ this.slots.compareAndSet(i, entry, null); }
+		}
+	}
+
+	/**
+	 * Remove every cached destination.
+	 */
+	public void clear()
+	{ this.invalidatePrefix(0, 0); }
+
+	public void routeChanged(RouteEntry oldEntry, RouteEntry newEntry)
+	{
+		RouteEntry entry = (newEntry != null) ? newEntry : oldEntry;
+		this.invalidatePrefix(entry.getDestinationAddress(),
+				entry.getMaskAddress());
+	}
+
+	public void arpChanged(int ip)
+	{ this.invalidateNextHop(ip); }
+
+	/**
+	 * @return maximum number of cached destinations
+	 */
+	public int getCapacity()
+	{ return this.slots.length(); }
+
+	/**
+	 * @return number of lookups that found a cached decision
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups that did not find a cached decision
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * @return number of cached decisions replaced by another destination
+	 */
+	public long getEvictions()
+	{ return this.evictions.sum(); }
+
+	/**
+	 * @return number of route or ARP changes that invalidated the cache
+	 */
+	public long getInvalidations()
+	{ return this.invalidations.sum(); }
+
+	public String toString()
+	{
+		return String.format(
+				"capacity %d, hits %d, misses %d, evictions %d, invalidations %d",
+				this.getCapacity(), this.getHits(), this.getMisses(),
+				this.getEvictions(), this.getInvalidations());
+	}
+}
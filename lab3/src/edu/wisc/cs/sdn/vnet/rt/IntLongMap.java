@@ -0,0 +1,324 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent hash map from primitive int keys (e.g., IP addresses) to
+ * primitive long values (e.g., MAC addresses in the lower 48 bits), using
+ * open addressing with linear probing. Reads never lock or allocate; writes
+ * are serialized. Values must be non-negative; {@link #NO_VALUE} is returned
+ * for missing keys.
+ * <p>
+ * A key keeps its slot until the table is rebuilt, so a reader probing a
+ * table never misses a key that a concurrent writer is not touching. Removed
+ * keys leave a tombstone that is reused if the key is inserted again, and
+ * discarded when the table is rebuilt. A rebuilt table is published as a
+ * whole; readers still probing the old table see its final contents.
+ */
+public class IntLongMap
+{
+	/** Value returned for missing keys */
+	public static final long NO_VALUE = -1;
+
+	/** Default number of slots */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** Key marking an empty slot; the key itself is stored separately */
+	private static final int EMPTY = 0;
+
+	/**
+	 * Slots of the map. A slot is empty while its key is {@link #EMPTY}, and
+	 * a tombstone while its value is {@link #NO_VALUE}.
+	 */
+	private static class Table
+	{
+		final AtomicIntegerArray keys;
+		final AtomicLongArray values;
+		final int mask;
+
+		Table(int slots)
+		{
+			this.keys = new AtomicIntegerArray(slots);
+			this.values = new AtomicLongArray(slots);
+			this.mask = slots - 1;
+		}
+	}
+
+	/** Current slots */
+	private volatile Table table;
+
+	/** Value for the key {@link #EMPTY} */
+	private volatile long emptyKeyValue;
+
+	/** Number of keys with a value, including {@link #EMPTY} */
+	private int size;
+
+	/** Number of slots that are in use, including tombstones */
+	private int used;
+
+	/**
+	 * Create an empty map.
+	 */
+	public IntLongMap()
+	{ this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Create an empty map.
+	 * @param capacity expected number of entries
+	 */
+	public IntLongMap(int capacity)
+	{
+		this.table = new Table(slotsFor(capacity));
+		this.emptyKeyValue = NO_VALUE;
+		this.size = 0;
+		this.used = 0;
+	}
+
+	/**
+	 * @param capacity number of entries
+	 * @return number of slots needed to hold the entries at half load
+	 */
+	private static int slotsFor(int capacity)
+	{ return Integer.highestOneBit(Math.max(capacity * 2, 2) - 1) << 1; }
+
+	/**
+	 * @param key key to hash
+	 * @param mask mask for the number of slots
+	 * @return the preferred slot for the key
+	 */
+	private static int slot(int key, int mask)
+	{
+		int h = key * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @param table slots to search
+	 * @param key key to find; must not be {@link #EMPTY}
+	 * @return slot holding the key, or the empty slot where the key would be
+	 *         inserted
+	 */
+	private static int find(Table table, int key)
+	{
+		int i = slot(key, table.mask);
+		while (true)
+		{
+			int k = table.keys.get(i);
+			if (k == key || k == EMPTY)
+			{ return i; }
+			i = (i + 1) & table.mask;
+		}
+	}
+
+	/**
+	 * @param key key to lookup
+	 * @return the value for the key; {@link #NO_VALUE} if the key is not
+	 *         present
+	 */
+	public long get(int key)
+	{
+		if (EMPTY == key)
+		{ return this.emptyKeyValue; }
+		Table table = this.table;
+		int i = find(table, key);
+		return (table.keys.get(i) == key) ? table.values.get(i) : NO_VALUE;
+	}
+
+	/**
+	 * @param key key to lookup
+	 * @return true if the key is present
+	 */
+	public boolean containsKey(int key)
+	{ return this.get(key) != NO_VALUE; }
+
+	/**
+	 * Associate a value with a key, replacing any existing value.
+	 * @param key key to store
+	 * @param value value to store; must not be negative
+	 * @return the previous value for the key; {@link #NO_VALUE} if the key
+	 *         was not present
+	 */
+	public synchronized long put(int key, long value)
+	{
+		if (value < 0)
+		{ throw new IllegalArgumentException("Negative value " + value); }
+		if (EMPTY == key)
+		{
+			long old = this.emptyKeyValue;
+			this.emptyKeyValue = value;
+			if (NO_VALUE == old)
+			{ this.size++; }
+			return old;
+		}
+
+		Table table = this.table;
+		int i = find(table, key);
+		if (table.keys.get(i) == key)
+		{
+			long old = table.values.getAndSet(i, value);
+			if (NO_VALUE == old)
+			{ this.size++; }
+			return old;
+		}
+
+		// Publish the value before the key, so readers that find the key
+		// also find its value
+		table.values.set(i, value);
+		table.keys.set(i, key);
+		this.size++;
+		this.used++;
+		if (this.used * 2 > table.keys.length())
+		{ this.rebuild(this.size * 2); }
+		return NO_VALUE;
+	}
+
+	/**
+	 * Associate a value with a key, unless the key is already present.
+	 * @param key key to store
+	 * @param value value to store; must not be negative
+	 * @return true if the value was stored
+	 */
+	public synchronized boolean putIfAbsent(int key, long value)
+	{
+		if (this.containsKey(key))
+		{ return false; }
+		this.put(key, value);
+		return true;
+	}
+
+	/**
+	 * Store several entries at once, growing the table at most once.
+	 * @param keys keys to store
+	 * @param values values to store, in the same order as the keys
+	 * @param count number of entries to store
+	 */
+	public synchronized void putAll(int[] keys, long[] values, int count)
+	{
+		if ((this.used + count) * 2 > this.table.keys.length())
+		{ this.rebuild(this.size + count); }
+		for (int i = 0; i < count; i++)
+		{ this.put(keys[i], values[i]); }
+	}
+
+	/**
+	 * Replace the value for a key, if the key currently has an expected
+	 * value. Does not lock, and may fail if the table is rebuilt while the
+	 * value is being replaced.
+	 * @param key key whose value should be replaced
+	 * @param expect expected current value; must not be {@link #NO_VALUE}
+	 * @param update new value; must not be negative
+	 * @return true if the value was replaced
+	 */
+	public boolean compareAndSet(int key, long expect, long update)
+	{
+		if (update < 0 || NO_VALUE == expect || EMPTY == key)
+		{ return false; }
+		Table table = this.table;
+		int i = find(table, key);
+		return (table.keys.get(i) == key)
+				&& table.values.compareAndSet(i, expect, update)
+				&& (this.table == table);
+	}
+
+	/**
+	 * Remove the value for a key.
+	 * @param key key to remove
+	 * @return the removed value; {@link #NO_VALUE} if the key was not present
+	 */
+	public synchronized long remove(int key)
+	{
+		long old;
+		if (EMPTY == key)
+		{
+			old = this.emptyKeyValue;
+			this.emptyKeyValue = NO_VALUE;
+		}
+		else
+		{
+			Table table = this.table;
+			int i = find(table, key);
+			if (table.keys.get(i) != key)
+			{ return NO_VALUE; }
+			old = table.values.getAndSet(i, NO_VALUE);
+		}
+		if (old != NO_VALUE)
+		{ this.size--; }
+		return old;
+	}
+
+	/**
+	 * @return number of entries in the map
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	/**
+	 * @return true if the map has no entries
+	 */
+	public boolean isEmpty()
+	{ return 0 == this.size(); }
+
+	/**
+	 * @return a copy of the keys in the map
+	 */
+	public int[] keys()
+	{
+		Table table = this.table;
+		long emptyKeyValue = this.emptyKeyValue;
+		int count = (emptyKeyValue != NO_VALUE) ? 1 : 0;
+		for (int i = 0; i < table.keys.length(); i++)
+		{
+			if (table.keys.get(i) != EMPTY && table.values.get(i) != NO_VALUE)
+			{ count++; }
+		}
+
+		int[] result = new int[count];
+		int n = 0;
+		if (emptyKeyValue != NO_VALUE)
+		{ result[n++] = EMPTY; }
+		for (int i = 0; i < table.keys.length() && n < count; i++)
+		{
+			if (table.keys.get(i) != EMPTY && table.values.get(i) != NO_VALUE)
+			{ result[n++] = table.keys.get(i); }
+		}
+		return (n == count) ? result : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Remove every entry from the map.
+	 */
+	public synchronized void clear()
+	{
+		this.table = new Table(this.table.keys.length());
+		this.emptyKeyValue = NO_VALUE;
+		this.size = 0;
+		this.used = 0;
+	}
+
+	/**
+	 * Copy every entry into a new table, dropping tombstones, and publish it.
+	 * @param capacity number of entries the new table should hold
+	 */
+	private void rebuild(int capacity)
+	{
+		Table old = this.table;
+		Table table = new Table(Math.max(slotsFor(capacity),
+				slotsFor(DEFAULT_CAPACITY)));
+		int used = 0;
+		for (int j = 0; j < old.keys.length(); j++)
+		{
+			int key = old.keys.get(j);
+			long value = old.values.get(j);
+			if (EMPTY == key || NO_VALUE == value)
+			{ continue; }
+			int i = find(table, key);
+			table.values.set(i, value);
+			table.keys.set(i, key);
+			used++;
+		}
+		this.used = used;
+		this.table = table;
+	}
+}
@@ -0,0 +1,210 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash map from primitive int keys (e.g., IP addresses) to objects, using
+ * open addressing with linear probing so keys are never boxed. Values must
+ * not be null. The map is not thread-safe; callers must synchronize.
+ * @param <V> type of the values
+ */
+public class IntObjectMap<V>
+{
+	/** Default number of slots */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/** Keys stored in each slot */
+	private int[] keys;
+
+	/** Values stored in each slot; null if the slot is empty */
+	private Object[] values;
+
+	/** Number of occupied slots */
+	private int size;
+
+	/**
+	 * Create an empty map.
+	 */
+	public IntObjectMap()
+	{ this(DEFAULT_CAPACITY); }
+
+	/**
+	 * Create an empty map.
+	 * @param capacity expected number of entries
+	 */
+	public IntObjectMap(int capacity)
+	{
+		int slots = Integer.highestOneBit(Math.max(capacity * 2, 2) - 1) << 1;
+		this.keys = new int[slots];
+		this.values = new Object[slots];
+		this.size = 0;
+	}
+
+	/**
+	 * @param key key to hash
+	 * @param mask mask for the number of slots
+	 * @return the preferred slot for the key
+	 */
+	private static int slot(int key, int mask)
+	{
+		int h = key * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @param key key to find
+	 * @return slot holding the key; -1 if the key is not present
+	 */
+	private int find(int key)
+	{
+		int mask = this.keys.length - 1;
+		for (int i = slot(key, mask); this.values[i] != null; i = (i + 1) & mask)
+		{
+			if (this.keys[i] == key)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * @param key key to lookup
+	 * @return the value for the key; null if the key is not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int i = this.find(key);
+		return (i < 0) ? null : (V)this.values[i];
+	}
+
+	/**
+	 * @param key key to lookup
+	 * @return true if the key is present
+	 */
+	public boolean containsKey(int key)
+	{ return this.find(key) >= 0; }
+
+	/**
+	 * Associate a value with a key, replacing any existing value.
+	 * @param key key to store
+	 * @param value value to store; must not be null
+	 * @return the previous value for the key; null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (null == value)
+		{ throw new IllegalArgumentException("Null value"); }
+		int mask = this.keys.length - 1;
+		int i = slot(key, mask);
+		for (; this.values[i] != null; i = (i + 1) & mask)
+		{
+			if (this.keys[i] == key)
+			{
+				V old = (V)this.values[i];
+				this.values[i] = value;
+				return old;
+			}
+		}
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.size++;
+		if (this.size * 2 > this.keys.length)
+		{ this.resize(this.keys.length * 2); }
+		return null;
+	}
+
+	/**
+	 * Remove the value for a key.
+	 * @param key key to remove
+	 * @return the removed value; null if the key was not present
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int i = this.find(key);
+		if (i < 0)
+		{ return null; }
+		V old = (V)this.values[i];
+		this.values[i] = null;
+		this.size--;
+
+		// Shift back later entries of the probe run so lookups never stop at
+		// the hole left behind
+		int mask = this.keys.length - 1;
+		int hole = i;
+		for (int j = (i + 1) & mask; this.values[j] != null; j = (j + 1) & mask)
+		{
+			int home = slot(this.keys[j], mask);
+			if (((j - home) & mask) >= ((j - hole) & mask))
+			{
+				this.keys[hole] = this.keys[j];
+				this.values[hole] = this.values[j];
+				this.values[j] = null;
+				hole = j;
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * @return number of entries in the map
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return true if the map has no entries
+	 */
+	public boolean isEmpty()
+	{ return 0 == this.size; }
+
+	/**
+	 * @return a copy of the values in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values()
+	{
+		List<V> result = new ArrayList<V>(this.size);
+		for (Object value : this.values)
+		{
+			if (value != null)
+			{ result.add((V)value); }
+		}
+		return result;
+	}
+
+	/**
+	 * Remove every entry from the map.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < this.values.length; i++)
+		{ this.values[i] = null; }
+		this.size = 0;
+	}
+
+	/**
+	 * Rehash every entry into a larger table.
+	 * @param slots new number of slots
+	 */
+	private void resize(int slots)
+	{
+		int[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		this.keys = new int[slots];
+		this.values = new Object[slots];
+		int mask = slots - 1;
+		for (int j = 0; j < oldKeys.length; j++)
+		{
+			if (null == oldValues[j])
+			{ continue; }
+			int i = slot(oldKeys[j], mask);
+			while (this.values[i] != null)
+			{ i = (i + 1) & mask; }
+			this.keys[i] = oldKeys[j];
+			this.values[i] = oldValues[j];
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multibit trie used for longest prefix matching on IPv4 addresses. Each
+ * level of the trie consumes a fixed number of address bits (the stride), so
+ * a lookup touches at most ceil(32/stride) nodes regardless of how many
+ * prefixes are installed. Prefixes that do not end on a stride boundary are
+ * expanded across all of the slots they cover in their terminal node.
+ * <p>
+ * Each node also records the routes for the exact prefixes that end in it,
+ * so finding the route for a prefix walks the same path as a lookup.
+ * <p>
+ * A trie is never modified once it has been built: insert and remove return
+ * a new trie that copies only the nodes along the modified path and shares
+ * the rest, so readers can use a published trie without locking. Many
+ * changes can be made at once with an {@link Editor}, which copies each node
+ * at most once however many of the changes pass through it.
+ */
+public class MultibitTrie
+{
+	/** Default number of address bits consumed at each level */
+	public static final int DEFAULT_STRIDE = 8;
+
+	/** Number of address bits consumed at each level */
+	private final int stride;
+
+	/** Number of levels needed to cover a 32-bit address */
+	private final int levels;
+
+	/** Root node of the trie */
+	private final Node root;
+
+	/** Route for the zero-length prefix; null if none is installed */
+	private final RouteEntry defaultRoute;
+
+	/** Number of installed prefixes */
+	private final int size;
+
+	/**
+	 * A node in the trie. Slot i holds the longest prefix that ends in this
+	 * node and covers i, along with that prefix's length, and the child
+	 * node for longer prefixes that share i. The routes for the exact
+	 * prefixes that end in the node are kept apart (see {@link #slot}).
+	 */
+	private static class Node
+	{
+		RouteEntry[] routes;
+		byte[] lengths;
+		Node[] children;
+		RouteEntry[] prefixes;
+
+		/** Edit that may still change the node in place; null for none */
+		Object owner;
+
+		Node(int width, Object owner)
+		{
+			this.routes = new RouteEntry[1 << width];
+			this.lengths = new byte[1 << width];
+			this.children = new Node[1 << width];
+			this.prefixes = new RouteEntry[(2 << width) - 2];
+			this.owner = owner;
+		}
+
+		Node(Node other, Object owner)
+		{
+			this.routes = other.routes.clone();
+			this.lengths = other.lengths.clone();
+			this.children = other.children.clone();
+			this.prefixes = other.prefixes.clone();
+			this.owner = owner;
+		}
+	}
+
+	/**
+	 * Makes many changes to a trie, then builds a new trie with all of them.
+	 * Nodes copied by the editor are changed in place by later changes, so
+	 * each node is copied at most once. The original trie is unchanged, and
+	 * the editor may not be used once the new trie is built.
+	 */
+	public class Editor
+	{
+		/** Marks the nodes this editor has copied */
+		private Object token;
+
+		private Node root;
+		private RouteEntry defaultRoute;
+		private int size;
+
+		private Editor()
+		{
+			this.token = new Object();
+			this.root = MultibitTrie.this.root;
+			this.defaultRoute = MultibitTrie.this.defaultRoute;
+			this.size = MultibitTrie.this.size;
+		}
+
+		/**
+		 * Find the route installed for an exact prefix, including changes
+		 * made by the editor.
+		 * @param dstIp destination IP of the prefix
+		 * @param maskIp subnet mask of the prefix
+		 * @return the route entry for the prefix, null if none exists
+		 */
+		public RouteEntry find(int dstIp, int maskIp)
+		{ return MultibitTrie.this.find(this.root, this.defaultRoute, dstIp, maskIp); }
+
+		private void check()
+		{
+			if (null == this.token)
+			{ throw new IllegalStateException("Trie already built"); }
+		}
+
+		/**
+		 * @param node node to change, or null to add a node
+		 * @param level level of the node
+		 * @return a node owned by this editor with the same contents
+		 */
+		private Node own(Node node, int level)
+		{
+			this.check();
+			if (null == node)
+			{ return new Node(width(level), this.token); }
+			return (node.owner == this.token) ? node : new Node(node, this.token);
+		}
+
+		/**
+		 * Own the path down to the node in which a prefix ends.
+		 * @return the node
+		 */
+		private Node ownPath(int prefix, int last)
+		{
+			this.root = this.own(this.root, 0);
+			Node node = this.root;
+			for (int level = 0; level < last; level++)
+			{
+				int idx = index(prefix, level);
+				node.children[idx] = this.own(node.children[idx], level + 1);
+				node = node.children[idx];
+			}
+			return node;
+		}
+
+		/**
+		 * Install a route, replacing any route for the same prefix.
+		 * @param entry route entry to install
+		 * @return this editor
+		 */
+		public Editor insert(RouteEntry entry)
+		{
+			int length = prefixLength(entry.getMaskAddress());
+			int prefix = entry.getDestinationAddress() & entry.getMaskAddress();
+			if (null == this.find(prefix, entry.getMaskAddress()))
+			{ this.size++; }
+			if (0 == length)
+			{
+				this.check();
+				this.defaultRoute = entry;
+				return this;
+			}
+
+			int last = (length - 1) / stride;
+			Node node = this.ownPath(prefix, last);
+			node.prefixes[slot(prefix, length, last * stride)] = entry;
+
+			// Expand the prefix across every slot it covers
+			int free = last * stride + width(last) - length;
+			int first = index(prefix, last);
+			for (int idx = first; idx < first + (1 << free); idx++)
+			{
+				if (null == node.routes[idx] || node.lengths[idx] <= length)
+				{
+					node.routes[idx] = entry;
+					node.lengths[idx] = (byte)length;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Remove the route installed for an exact prefix, if any.
+		 * @param dstIp destination IP of the prefix
+		 * @param maskIp subnet mask of the prefix
+		 * @return this editor
+		 */
+		public Editor remove(int dstIp, int maskIp)
+		{
+			int length = prefixLength(maskIp);
+			int prefix = dstIp & maskIp;
+			RouteEntry entry = this.find(prefix, maskIp);
+			if (null == entry)
+			{ return this; }
+			this.size--;
+			if (0 == length)
+			{
+				this.check();
+				this.defaultRoute = null;
+				return this;
+			}
+
+			// Every node on the path exists because the prefix is installed
+			int last = (length - 1) / stride;
+			int base = last * stride;
+			Node node = this.ownPath(prefix, last);
+			node.prefixes[slot(prefix, length, base)] = null;
+
+			// Each slot the prefix owned falls back to the next longest prefix
+			// that ends in the same node, if any
+			int free = base + width(last) - length;
+			int first = index(prefix, last);
+			for (int idx = first; idx < first + (1 << free); idx++)
+			{
+				if (node.routes[idx] != entry)
+				{ continue; }
+				node.routes[idx] = null;
+				node.lengths[idx] = 0;
+				int slotIp = prefix | (idx - first) << (32 - base - width(last));
+				for (int shorter = length - 1; shorter > base; shorter--)
+				{
+					RouteEntry cover = node.prefixes[slot(
+							slotIp & prefixMask(shorter), shorter, base)];
+					if (cover != null)
+					{
+						node.routes[idx] = cover;
+						node.lengths[idx] = (byte)shorter;
+						break;
+					}
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * @return a new trie with every change made by the editor
+		 */
+		public MultibitTrie build()
+		{
+			this.check();
+			this.token = null;
+			return new MultibitTrie(MultibitTrie.this, this.root, 
+					this.defaultRoute, this.size);
+		}
+	}
+
+	/**
+	 * Create an empty trie with the default stride.
+	 */
+	public MultibitTrie()
+	{ this(DEFAULT_STRIDE); }
+
+	/**
+	 * Create an empty trie.
+	 * @param stride number of address bits consumed at each level (1-16)
+	 */
+	public MultibitTrie(int stride)
+	{
+		if (stride < 1 || stride > 16)
+		{ throw new IllegalArgumentException("Invalid stride " + stride); }
+		this.stride = stride;
+		this.levels = (32 + stride - 1) / stride;
+		this.root = new Node(this.width(0), null);
+		this.defaultRoute = null;
+		this.size = 0;
+	}
+
+	/**
+	 * Create a trie that shares the nodes of an existing trie.
+	 * @param other trie whose nodes are shared
+	 * @param root root node of the new trie
+	 * @param defaultRoute route for the zero-length prefix
+	 * @param size number of installed prefixes in the new trie
+	 */
+	private MultibitTrie(MultibitTrie other, Node root, 
+			RouteEntry defaultRoute, int size)
+	{
+		this.stride = other.stride;
+		this.levels = other.levels;
+		this.root = root;
+		this.defaultRoute = defaultRoute;
+		this.size = size;
+	}
+
+	/**
+	 * @return number of address bits consumed at each level
+	 */
+	public int getStride()
+	{ return this.stride; }
+
+	/**
+	 * @param level level in the trie
+	 * @return number of address bits consumed at the level
+	 */
+	private int width(int level)
+	{ return Math.min(this.stride, 32 - level * this.stride); }
+
+	/**
+	 * @param ip IP address
+	 * @param level level in the trie
+	 * @return index of the slot for the address in a node at the level
+	 */
+	private int index(int ip, int level)
+	{
+		int width = this.width(level);
+		int shift = 32 - level * this.stride - width;
+		return (ip >>> shift) & ((1 << width) - 1);
+	}
+
+	/**
+	 * @param maskIp subnet mask
+	 * @return prefix length of the subnet mask
+	 */
+	public static int prefixLength(int maskIp)
+	{ return Integer.bitCount(maskIp); }
+
+	/**
+	 * @param length prefix length
+	 * @return subnet mask for the prefix length
+	 */
+	public static int prefixMask(int length)
+	{ return (0 == length) ? 0 : (0xffffffff << (32 - length)); }
+
+	/**
+	 * Index of the exact-prefix slot for a prefix in the node in which it
+	 * ends. The prefixes of each length that end in a node take a block of
+	 * slots: the 2 prefixes one bit longer than the node's base come first,
+	 * then the 4 two bits longer, and so on.
+	 * @param prefix the prefix
+	 * @param length length of the prefix
+	 * @param base number of address bits consumed above the node
+	 */
+	private static int slot(int prefix, int length, int base)
+	{
+		int rel = length - base;
+		return (1 << rel) - 2 + ((prefix >>> (32 - length)) & ((1 << rel) - 1));
+	}
+
+	/**
+	 * Find the route with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{
+		RouteEntry bestMatch = this.defaultRoute;
+		Node node = this.root;
+		for (int level = 0; node != null && level < this.levels; level++)
+		{
+			int idx = this.index(ip, level);
+			if (node.routes[idx] != null)
+			{ bestMatch = node.routes[idx]; }
+			node = node.children[idx];
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Find the route installed for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return the route entry for the prefix, null if none exists
+	 */
+	public RouteEntry find(int dstIp, int maskIp)
+	{ return this.find(this.root, this.defaultRoute, dstIp, maskIp); }
+
+	private RouteEntry find(Node root, RouteEntry defaultRoute, int dstIp, 
+			int maskIp)
+	{
+		int length = prefixLength(maskIp);
+		int prefix = dstIp & maskIp;
+		if (0 == length)
+		{ return defaultRoute; }
+		int last = (length - 1) / this.stride;
+		Node node = root;
+		for (int level = 0; node != null && level < last; level++)
+		{ node = node.children[this.index(prefix, level)]; }
+		return (null == node) ? null 
+				: node.prefixes[slot(prefix, length, last * this.stride)];
+	}
+
+	/**
+	 * @return number of installed prefixes
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * @return every installed route, in order of prefix
+	 */
+	public List<RouteEntry> entries()
+	{
+		List<RouteEntry> entries = new ArrayList<RouteEntry>(this.size);
+		if (this.defaultRoute != null)
+		{ entries.add(this.defaultRoute); }
+		collect(this.root, entries);
+		return entries;
+	}
+
+	private static void collect(Node node, List<RouteEntry> entries)
+	{
+		for (RouteEntry entry : node.prefixes)
+		{
+			if (entry != null)
+			{ entries.add(entry); }
+		}
+		for (Node child : node.children)
+		{
+			if (child != null)
+			{ collect(child, entries); }
+		}
+	}
+
+	/**
+	 * @return an editor for making many changes to this trie at once
+	 */
+	public Editor edit()
+	{ return new Editor(); }
+
+	/**
+	 * Install a route, replacing any route for the same prefix.
+	 * @param entry route entry to install
+	 * @return a new trie containing the route; this trie is unchanged
+	 */
+	public MultibitTrie insert(RouteEntry entry)
+	{ return this.edit().insert(entry).build(); }
+
+	/**
+	 * Remove the route installed for an exact prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param maskIp subnet mask of the prefix
+	 * @return a new trie without the route; this trie if no route is 
+	 *         installed for the prefix
+	 */
+	public MultibitTrie remove(int dstIp, int maskIp)
+	{
+		if (null == this.find(dstIp, maskIp))
+		{ return this; }
+		return this.edit().remove(dstIp, maskIp).build();
+	}
+}
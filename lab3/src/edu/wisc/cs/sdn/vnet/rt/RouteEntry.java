@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
@@ -26,8 +27,9 @@ public class RouteEntry
 	// Added to keep track of distance to destination
 	private int metric;
 	
-	// Added to track how much time since last update
-	private long updateTime;
+	// Added to track how much time since last update; refreshed in place
+	// while the entry is published, so it must be visible to other threads
+	private volatile long updateTime;
 	
 	// Used to see if this is an entry that can be removed by timeout (was from interface or not)
 	private boolean directlyConnected;
@@ -51,7 +53,7 @@ public class RouteEntry
 		
 		// New
 		this.metric = metric;
-		this.updateTime = System.currentTimeMillis();
+		this.updateTime = Clock.get().currentTimeMillis();
 		this.directlyConnected = directlyConnected;
 	}
 	
@@ -72,7 +74,7 @@ public class RouteEntry
 	}
 	
 	public void setUpdateTime() {
-		this.updateTime = System.currentTimeMillis();
+		this.updateTime = Clock.get().currentTimeMillis();
 	}
 	
 	public long getUpdateTime() {
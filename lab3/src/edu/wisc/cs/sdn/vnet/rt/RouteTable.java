@@ -4,29 +4,158 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.RIPv2Entry;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
  * Route table for a router.
+ * <p>
+ * Readers never lock the table: every change builds a new immutable 
+ * {@link Snapshot} and publishes it atomically, so lookups always see either
+ * the old or the new set of routes. Writers are serialized by a lock, and
+ * listeners are notified of changes after the lock is released. The routes
+ * of a RIP response are applied together, as one snapshot.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/**
+	 * Receives a notification whenever the route for a prefix changes.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called after a new snapshot containing the change is published.
+		 * @param oldEntry entry previously installed for the prefix; null if
+		 *        the prefix was added
+		 * @param newEntry entry now installed for the prefix; null if the 
+		 *        prefix was removed
+		 */
+		void routeChanged(RouteEntry oldEntry, RouteEntry newEntry);
+	}
+	
+	/**
+	 * An immutable view of the routes in the table at one point in time.
+	 */
+	private static class Snapshot
+	{
+		/** Longest prefix match structure over the entries */
+		final MultibitTrie trie;
+		
+		/** Entries in the route table; listed from the trie when first 
+		 *  needed */
+		private volatile List<RouteEntry> entries;
+		
+		Snapshot(MultibitTrie trie)
+		{
+			this.trie = trie;
+			this.entries = null;
+		}
+		
+		List<RouteEntry> getEntries()
+		{
+			List<RouteEntry> entries = this.entries;
+			if (null == entries)
+			{
+				entries = Collections.unmodifiableList(this.trie.entries());
+				this.entries = entries;
+			}
+			return entries;
+		}
+	}
+	
+	/**
+	 * Changes made under the write lock, published as one snapshot and then
+	 * announced to listeners once the lock is released.
+	 */
+	private class Update
+	{
+		/** Editor for the next snapshot's trie */
+		final MultibitTrie.Editor editor;
+		
+		/** Changes made so far, as (old entry, new entry) pairs */
+		final List<RouteEntry[]> changes;
+		
+		Update()
+		{
+			this.editor = snapshot.trie.edit();
+			this.changes = new ArrayList<RouteEntry[]>(1);
+		}
+		
+		/**
+		 * @return the entry for a prefix, including changes made so far
+		 */
+		RouteEntry find(int dstIp, int maskIp)
+		{ return this.editor.find(dstIp, maskIp); }
+		
+		/**
+		 * Replace the entry for a prefix.
+		 * @param entry new entry for the prefix; null to remove the prefix
+		 * @return the entry previously installed for the prefix, null if none
+		 */
+		RouteEntry set(int dstIp, int maskIp, RouteEntry entry)
+		{
+			RouteEntry old = this.editor.find(dstIp, maskIp);
+			if (null == old && null == entry)
+			{ return null; }
+			this.changes.add(new RouteEntry[] { old, entry });
+			if (entry != null)
+			{ this.editor.insert(entry); }
+			else
+			{ this.editor.remove(dstIp, maskIp); }
+			return old;
+		}
+	}
+	
+	/** Most recently published snapshot of the route table */
+	private volatile Snapshot snapshot;
+	
+	/** Lock held while building and publishing a new snapshot */
+	private final Object writeLock;
+	
+	/** Listeners notified of route changes */
+	private final List<Listener> listeners;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{ this(MultibitTrie.DEFAULT_STRIDE); }
+	
+	/**
+	 * Initialize an empty route table.
+	 * @param stride number of address bits consumed at each level of the 
+	 *        longest prefix match trie
+	 */
+	public RouteTable(int stride)
+	{ 
+		this.writeLock = new Object();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.snapshot = new Snapshot(new MultibitTrie(stride));
+	}
+	
+	/**
+	 * Register a listener to be notified of route changes.
+	 * @param listener listener to notify
+	 */
+	public void addListener(Listener listener)
+	{ this.listeners.add(listener); }
+	
+	/**
+	 * Stop notifying a listener of route changes.
+	 * @param listener listener to remove
+	 */
+	public void removeListener(Listener listener)
+	{ this.listeners.remove(listener); }
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -34,29 +163,7 @@ public class RouteTable
 	 * @return the matching route entry, null if none exists
 	 */
 	public RouteEntry lookup(int ip)
-	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-	        RouteEntry bestMatch = null;
-	        for (RouteEntry entry : this.entries)
-	        {
-	           int maskedDst = ip & entry.getMaskAddress();
-	           int entrySubnet = entry.getDestinationAddress() 
-	               & entry.getMaskAddress();
-	           if (maskedDst == entrySubnet)
-	           {
-	        	   if ((null == bestMatch) 
-	        		   || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-	        	   { bestMatch = entry; }
-	           }
-	        }
-			return bestMatch;
-			
-			/*****************************************************************/
-        }
-	}
+	{ return this.snapshot.trie.lookup(ip); }
 	
 	/**
 	 * Populate the route table from a file.
@@ -157,15 +264,21 @@ public class RouteTable
 	 * @param maskIp subnet mask
 	 * @param iface router interface out which to send packets to reach the 
 	 *        destination or gateway
+	 * @param metric distance to the destination
+	 * @param directlyConnected true if the destination is attached to iface
 	 */
 	 // modified with new fields
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, int metric, boolean directlyConnected)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric, directlyConnected);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
+		Update update;
+        synchronized(this.writeLock)
+        {
+        	update = new Update();
+        	update.set(entry.getDestinationAddress(), maskIp, entry);
+        	this.publish(update);
         }
+        this.announce(update);
 	}
 	
 	/**
@@ -176,15 +289,38 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+		Update update;
+        synchronized(this.writeLock)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+        	update = new Update();
+        	update.set(dstIp, maskIp, null);
+        	this.publish(update);
+        }
+        this.announce(update);
+        return !update.changes.isEmpty();
+    }
+	
+	/**
+	 * Remove an entry from the route table, unless it has been replaced.
+	 * @param entry the entry to remove
+     * @return true if the entry was installed and removed, otherwise false
+	 */
+	public boolean remove(RouteEntry entry)
+	{
+		Update update;
+        synchronized(this.writeLock)
+        {
+        	update = new Update();
+            if (update.find(entry.getDestinationAddress(), 
+            		entry.getMaskAddress()) != entry)
             { return false; }
-            this.entries.remove(entry);
+            update.set(entry.getDestinationAddress(), entry.getMaskAddress(), 
+            		null);
+            this.publish(update);
         }
+        this.announce(update);
         return true;
-    }
+	}
 	
 	/**
 	 * Update an entry in the route table.
@@ -197,17 +333,95 @@ public class RouteTable
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface)
 	{
-        synchronized(this.entries)
+		return this.update(dstIp, maskIp, gwIp, iface, -1);
+	}
+	
+	/**
+	 * Update an entry in the route table. The entry is replaced by a new
+	 * entry, so readers holding the old entry never see a partial update.
+	 * @param dstIP destination IP of the entry to update
+     * @param maskIp subnet mask of the entry to update
+	 * @param gatewayAddress new gateway IP address for matching entry
+	 * @param iface new router interface for matching entry
+	 * @param metric new distance to the destination for matching entry; -1
+	 *        to keep the entry's distance
+     * @return true if a matching entry was found and updated, otherwise false
+	 */
+	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface, 
+			int metric)
+	{
+		Update update;
+        synchronized(this.writeLock)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
+        	update = new Update();
+            RouteEntry entry = update.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            update.set(dstIp, maskIp, new RouteEntry(
+            		entry.getDestinationAddress(), gwIp, maskIp, iface, 
+            		(metric < 0) ? entry.getMetric() : metric, 
+            		entry.isDirectlyConnected()));
+            this.publish(update);
         }
+        this.announce(update);
         return true;
 	}
 
+	/**
+	 * Apply the routes advertised in a RIP response, each one hop further
+	 * than advertised: add a route if there is no entry for its prefix, 
+	 * replace the entry if the route is shorter or comes from the gateway 
+	 * the entry already uses, and just refresh the entry if the same route 
+	 * is advertised again. The comparisons and changes are made as one step
+	 * under the write lock, so responses handled at the same time never act
+	 * on the same old entry, and all the changes are published together.
+	 * @param routes routes advertised by the neighbor
+	 * @param gwIp IP address of the neighbor that advertised the routes
+	 * @param iface router interface on which the response arrived
+	 * @return number of entries added, replaced or refreshed
+	 */
+	public int learn(List<RIPv2Entry> routes, int gwIp, Iface iface)
+	{
+		int learned = 0;
+		Update update;
+        synchronized(this.writeLock)
+        {
+        	update = new Update();
+        	for (RIPv2Entry route : routes)
+        	{
+        		int dstIp = route.getAddress();
+        		int maskIp = route.getSubnetMask();
+        		int metric = route.getMetric() + 1;
+	            RouteEntry entry = update.find(dstIp, maskIp);
+	            if (null == entry)
+	            {
+	            	update.set(dstIp, maskIp, new RouteEntry(dstIp, gwIp, 
+	            			maskIp, iface, metric, false));
+	            	learned++;
+	            	continue;
+	            }
+	            if (entry.getMetric() <= metric 
+	            		&& entry.getGatewayAddress() != gwIp)
+	            { continue; }
+	            
+	            if (entry.getGatewayAddress() == gwIp 
+	            		&& entry.getMetric() == metric
+	            		&& entry.getInterface() == iface)
+	            { entry.setUpdateTime(); }
+	            else
+	            {
+	            	update.set(dstIp, maskIp, new RouteEntry(
+	            			entry.getDestinationAddress(), gwIp, maskIp, iface, 
+	            			metric, entry.isDirectlyConnected()));
+	            }
+	            learned++;
+        	}
+        	this.publish(update);
+        }
+        this.announce(update);
+        return learned;
+	}
+
     /**
 	 * Find an entry in the route table.
 	 * @param dstIP destination IP of the entry to find
@@ -216,37 +430,52 @@ public class RouteTable
 	 */
 	 // MODIFIED TO PUBLIC
     public RouteEntry find(int dstIp, int maskIp)
+    { return this.snapshot.trie.find(dstIp, maskIp); }
+    
+    /**
+     * Publish a snapshot with the changes of an update, if there are any. 
+     * Must be called while holding the write lock.
+     * @param update the update
+     */
+    private void publish(Update update)
     {
-        synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
+    	if (!update.changes.isEmpty())
+    	{ this.snapshot = new Snapshot(update.editor.build()); }
+    }
+    
+    /**
+     * Notify listeners of the changes of a published update. Must be called
+     * after releasing the write lock.
+     * @param update the update
+     */
+    private void announce(Update update)
+    {
+    	for (RouteEntry[] change : update.changes)
+    	{
+	    	for (Listener listener : this.listeners)
+	    	{ listener.routeChanged(change[0], change[1]); }
+    	}
     }
 	
 	// Added new values
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " WARNING: route table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\t\tmetric\tupdateTime\tdirectlyConnected\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
-        }
+        List<RouteEntry> entries = this.snapshot.getEntries();
+        if (0 == entries.size())
+        { return " WARNING: route table empty"; }
+        
+        String result = "Destination\tGateway\t\tMask\t\tIface\t\tmetric\tupdateTime\tdirectlyConnected\n";
+        for (RouteEntry entry : entries)
+        { result += entry.toString()+"\n"; }
+	    return result;
 	}
 	
 	
-	// NEW FUNCTION
+	/**
+	 * @return a consistent, unmodifiable snapshot of the entries in the 
+	 *         route table
+	 */
 	public List<RouteEntry> getEntries() {
-		return this.entries;
+		return this.snapshot.getEntries();
 	}
 }
@@ -1,8 +1,12 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.FrameLease;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
@@ -14,28 +18,60 @@ import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
 import net.floodlightcontroller.packet.UDP;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
-import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class Router extends Device
 {	
+	/** Log for packets handled by the router */
+	private static final Log.Category log = Log.getCategory("router");
+	
+	/** Length of an untagged Ethernet header */
+	private static final int ETHER_HEADER_LENGTH = 14;
+	
+	/** Length of an Ethernet frame holding an ARP request for IPv4 */
+	private static final int ARP_FRAME_LENGTH = ETHER_HEADER_LENGTH + 28;
+	
+	/** Broadcast MAC address, in the lower 48 bits */
+	static final long BROADCAST_MAC = 0xffffffffffffL;
+	
+	/** Default limit on ARP requests sent per second, and burst size */
+	public static final double DEFAULT_ARP_REQUEST_RATE = 100;
+	public static final int DEFAULT_ARP_REQUEST_BURST = 50;
+	
+	/** Time (in milliseconds) after which a route learned through RIP is 
+	 *  removed unless it is advertised again */
+	static final long ROUTE_TIMEOUT = 30 * 1000;
+	
 	/** Routing table for the router */
 	private RouteTable routeTable;
 	
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 	
-	/** queue for packets */
-	private ConcurrentHashMap<Integer, Queue> packetQueues;
+	/** Cache of forwarding decisions for recently seen destinations */
+	private ForwardingCache fwdCache;
+	
+	/** Prebuilt Ethernet headers for resolved next hops */
+	private AdjacencyTable adjacencies;
+	
+	/** Resolver for next hops that are not in the ARP cache */
+	private ArpResolver arpResolver;
+	
+	/** Prebuilt ARP request frames; maps an interface to a request sent from
+	 *  it, with room for a VNS command header in front */
+	private Map<Iface, byte[]> arpTemplates;
 	
-	// Plasce to hold RIP requester and checker thread
+	/** Limit on ARP requests sent across all interfaces */
+	private volatile TokenBucket arpLimiter;
+	
+	// Plasce to hold RIP requester and checker timers
 	private RIPResponder ripManager;
 	
 	
@@ -48,18 +84,85 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.adjacencies = new AdjacencyTable();
+		this.arpCache.addListener(this.adjacencies);
+		this.setForwardingCacheCapacity(ForwardingCache.DEFAULT_CAPACITY);
+		this.arpTemplates = new ConcurrentHashMap<Iface, byte[]>();
+		this.arpLimiter = new TokenBucket(DEFAULT_ARP_REQUEST_RATE, 
+				DEFAULT_ARP_REQUEST_BURST);
+		
+		// This sets up a way to queue packets while sending ARP requests
+		this.arpResolver = new ArpResolver(this);
 		
-		// This sets up a way to store queues for packets while sending ARP requests
-		this.packetQueues = new ConcurrentHashMap<Integer, Queue>();
+		// Resolve the gateways of routes as soon as they are installed
+		this.routeTable.addListener(this.arpResolver);
 		
 	}
 	
+	/**
+	 * Stop the router's helper threads and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		this.arpResolver.shutdown();
+		if (this.ripManager != null)
+		{ this.ripManager.stop(); }
+		super.destroy();
+	}
+	
 	/**
 	 * @return routing table for the router
 	 */
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 	
+	/**
+	 * @return cache of forwarding decisions for recently seen destinations
+	 */
+	public ForwardingCache getForwardingCache()
+	{ return this.fwdCache; }
+	
+	/**
+	 * @return the resolver that queues packets for unresolved next hops
+	 */
+	public ArpResolver getArpResolver()
+	{ return this.arpResolver; }
+	
+	/**
+	 * @return the router's ARP cache
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+	
+	/**
+	 * Replace the forwarding cache with an empty cache of a different size.
+	 * @param capacity maximum number of cached destinations
+	 */
+	public void setForwardingCacheCapacity(int capacity)
+	{
+		if (this.fwdCache != null) {
+			this.routeTable.removeListener(this.fwdCache);
+			this.arpCache.removeListener(this.fwdCache);
+		}
+		this.fwdCache = new ForwardingCache(capacity);
+		this.routeTable.addListener(this.fwdCache);
+		this.arpCache.addListener(this.fwdCache);
+	}
+	
+	/**
+	 * Limit the rate at which ARP requests are sent across all interfaces.
+	 * @param ratePerSecond ARP requests permitted per second
+	 * @param burst ARP requests permitted in a burst
+	 */
+	public void setArpRequestLimit(double ratePerSecond, int burst)
+	{ this.arpLimiter = new TokenBucket(ratePerSecond, burst); }
+	
+	/**
+	 * @return number of ARP requests suppressed by the rate limit
+	 */
+	public long getArpRequestsSuppressed()
+	{ return this.arpLimiter.getDenied(); }
+	
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -105,8 +208,7 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
+		log.debug("*** -> Received packet: %s", etherPacket);
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -144,27 +246,19 @@ public class Router extends Device
 		
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-        System.out.println("Handle IP packet");
+        log.trace("Handle IP packet");
 
         // Verify checksum
-        short origCksum = ipPacket.getChecksum();
-        ipPacket.resetChecksum();
-        byte[] serialized = ipPacket.serialize();
-        ipPacket.deserialize(serialized, 0, serialized.length);
-        short calcCksum = ipPacket.getChecksum();
-        if (origCksum != calcCksum)
+        if (!ipPacket.isChecksumValid())
         { return; }
         
-        // Check TTL
-        ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+        // Check TTL; the checksum is patched along with the TTL
+        ipPacket.decrementTtl();
         if (0 == ipPacket.getTtl()) { 
 			ICMPmake(etherPacket, inIface, (byte)11, (byte)0);
 			return; 
 		}
         
-        // Reset checksum now that TTL is decremented
-        ipPacket.resetChecksum();
-        
         // Check if packet is destined for one of router's interfaces
         for (Iface iface : this.interfaces.values())
         {
@@ -190,11 +284,22 @@ public class Router extends Device
         // Make sure it's an IP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
 		{ return; }
-        System.out.println("Forward IP packet");
+        log.trace("Forward IP packet");
 		
 		// Get IP header
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
         int dstAddr = ipPacket.getDestinationAddress();
+        
+        // Send right away if the next hop is already resolved
+        ForwardingCache.Entry decision = this.lookupForwarding(dstAddr);
+        if (decision != null) {
+        	if (decision.getInterface() == inIface)
+        	{ return; }
+        	etherPacket.setSourceMACAddress(decision.getAdjacency().getSourceMac());
+        	etherPacket.setDestinationMACAddress(decision.getAdjacency().getDestinationMac());
+        	this.sendPacket(etherPacket, decision.getInterface());
+        	return;
+        }
 
         // Find matching route table entry 
         RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
@@ -211,7 +316,7 @@ public class Router extends Device
         { return; }
 
         // Set source MAC address in Ethernet header
-        etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+        etherPacket.setSourceMACAddress(outIface.getMacAddress());
 
         // If no gateway, then nextHop is IP destination
         int nextHop = bestMatch.getGatewayAddress();
@@ -221,67 +326,217 @@ public class Router extends Device
         // Set destination MAC address in Ethernet header
 		checkARPCache(etherPacket, inIface, nextHop, outIface);
     }
+    
+    /**
+     * Find the forwarding decision for a destination, using the forwarding
+     * cache when possible and filling it otherwise.
+     * @param dstAddr destination IP address
+     * @return the forwarding decision; null if there is no route to the 
+     *         destination or the next hop has not been resolved
+     */
+    private ForwardingCache.Entry lookupForwarding(int dstAddr)
+    {
+    	ForwardingCache.Entry cached = this.fwdCache.lookup(dstAddr);
+    	if (cached != null && cached.getAdjacency().isValid()
+    			&& this.checkArpAge(cached.getAdjacency(), cached.getArpExpires()))
+    	{ return cached; }
+    	long generation = this.fwdCache.getGeneration();
+    	
+    	RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+    	if (null == bestMatch)
+    	{ return null; }
+    	int nextHop = bestMatch.getGatewayAddress();
+    	if (0 == nextHop)
+    	{ nextHop = dstAddr; }
+    	// Read the expiry first, so a MAC that is found has an expiry too
+    	long arpExpires = this.arpCache.getExpires(nextHop);
+    	if (IntLongMap.NO_VALUE == arpExpires)
+    	{ return null; }
+    	long mac = this.arpCache.lookupMac(nextHop);
+    	if (IntLongMap.NO_VALUE == mac)
+    	{ return null; }
+    	AdjacencyTable.Adjacency adjacency = this.adjacencies.get(
+    			bestMatch.getInterface(), nextHop, mac);
+    	if (!this.checkArpAge(adjacency, arpExpires))
+    	{ return null; }
+    	return this.fwdCache.insert(dstAddr, adjacency, arpExpires, generation);
+    }
+    
+    /**
+     * Check that an ARP cache entry is still usable, and start a background
+     * refresh when it is close to expiry. The entry keeps serving traffic 
+     * while the refresh is outstanding.
+     * @param adjacency adjacency for the next hop
+     * @param arpExpires time (in milliseconds since the epoch) the entry 
+     *        expired when it was read; 0 if it never expires
+     * @return true if the entry has not expired
+     */
+    private boolean checkArpAge(AdjacencyTable.Adjacency adjacency, 
+    		long arpExpires)
+    {
+    	if (arpExpires <= 0)
+    	{ return true; }
+    	long now = Clock.get().currentTimeMillis();
+    	if (now >= arpExpires)
+    	{ return false; }
+    	int nextHop = adjacency.getNextHop();
+    	if (now >= arpExpires - this.arpCache.getRefreshWindow()
+    			&& this.arpCache.claimRefresh(nextHop, now, 
+    					ArpResolver.REQUEST_INTERVAL))
+    	{
+    		this.arpResolver.refresh(nextHop, 
+    				adjacency.getDestinationMac().toLong(), 
+    				adjacency.getInterface());
+    	}
+    	return true;
+    }
+    
+    /**
+     * Forward transit IPv4 packets directly from the received frame. The TTL
+     * is decremented and the checksum patched in place, the MAC addresses 
+     * are rewritten in place, and the same buffer is sent. Anything that is
+     * not plain transit traffic with a resolved next hop is left for 
+     * {@link #handlePacket}.
+     * @param frame buffer holding the received Ethernet frame
+     * @param inIface the interface on which the frame was received
+     * @param lease owner of the buffer, which lends it so the frame is sent
+     *        in place; null if the buffer is reused as soon as this returns
+     * @return true if the frame was forwarded or dropped
+     */
+    public boolean handleFrame(ByteBuffer frame, Iface inIface, 
+    		FrameLease lease)
+    {
+    	int base = frame.position();
+    	int ip = base + ETHER_HEADER_LENGTH;
+    	if (frame.remaining() < ETHER_HEADER_LENGTH + 20
+    			|| frame.getShort(base + 12) != Ethernet.TYPE_IPv4)
+    	{ return false; }
+    	
+    	// Only handle well-formed IPv4 headers
+    	int versionIhl = frame.get(ip) & 0xff;
+    	int headerLength = (versionIhl & 0xf) * 4;
+    	if ((versionIhl >> 4) != 4 || headerLength < 20
+    			|| frame.limit() < ip + headerLength)
+    	{ return false; }
+    	
+    	// Drop packets with a bad checksum, like handleIpPacket
+    	if (IPv4.onesComplementSum(frame, ip, headerLength) != 0xffff)
+    	{ return true; }
+    	
+    	// Expiring, local, multicast and broadcast packets take the slow path
+    	int ttl = frame.get(ip + 8) & 0xff;
+    	int dstAddr = frame.getInt(ip + 16);
+    	if (ttl <= 1 || (dstAddr >>> 28) == 0xe || dstAddr == 0xffffffff)
+    	{ return false; }
+    	for (Iface iface : this.interfaces.values())
+    	{
+    		if (dstAddr == iface.getIpAddress())
+    		{ return false; }
+    	}
+    	
+    	// Packets without a route or resolved next hop take the slow path
+    	ForwardingCache.Entry decision = this.lookupForwarding(dstAddr);
+    	if (null == decision)
+    	{ return false; }
+    	Iface outIface = decision.getInterface();
+    	if (outIface == inIface)
+    	{ return true; }
+    	
+    	// Decrement TTL and patch the checksum for the changed word
+    	short oldWord = frame.getShort(ip + 8);
+    	frame.put(ip + 8, (byte)(ttl - 1));
+    	short newWord = frame.getShort(ip + 8);
+    	frame.putShort(ip + 10, IPv4.updateChecksum(frame.getShort(ip + 10), 
+    			oldWord, newWord));
+    	
+    	// Rewrite the Ethernet header
+    	decision.getAdjacency().rewrite(frame, base);
+    	
+    	this.sendFrame(frame, outIface, lease);
+    	return true;
+    }
+    
+    /**
+     * Write a MAC address into a buffer.
+     * @param buf buffer to write into
+     * @param index absolute index of the first byte of the address
+     * @param mac MAC address in the lower 48 bits
+     */
+    private static void putMac(ByteBuffer buf, int index, long mac)
+    {
+    	buf.putShort(index, (short)(mac >>> 32));
+    	buf.putInt(index + 2, (int)mac);
+    }
 	
-	private void SendARPRequest(Ethernet etherPacket, Iface inIface, int nextHop) {
+	/**
+	 * Sends an ARP request out the interface through which the next hop is
+	 * reached. The request is copied from a frame prebuilt for the interface,
+	 * and is subject to the router-wide ARP request rate limit.
+	 * @param outIface the interface on which the request should be sent
+	 * @param nextHop the IP address being resolved
+	 * @param dstMac destination MAC of the request, in the lower 48 bits;
+	 *        {@link #BROADCAST_MAC}, or the known MAC of the next hop when 
+	 *        refreshing an ARP cache entry
+	 * @return true if the request was sent
+	 */
+	boolean sendARPRequest(Iface outIface, int nextHop, long dstMac) {
+		if (!this.arpLimiter.tryAcquire()) {
+			return false;
+		}
 		
-		// Broadcast ARP request out of all interfaces (including interface original packet
-		// was received on, for case of empty ARPCache on startup)
-		HashMap<String, Iface> interfaces = (HashMap)getInterfaces();
-		for(Map.Entry<String, Iface> if_entry : interfaces.entrySet()) {
-				
-					
-			Ethernet ether = new Ethernet();
-			ARP arp = new ARP();
-			ether.setPayload(arp);
-			
-			// Ethernet stuff
-			// Set Ethernet Type
-			ether.setEtherType(Ethernet.TYPE_ARP);
-			
-			// Set Source MAC
-			ether.setSourceMACAddress(if_entry.getValue().getMacAddress().toBytes());
-			
-			// Set Destination MAC
-			ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
-			
-			// ARP stuff
-			// Set Hardware Type
-			arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
-			
-			// Set Protocol Type
-			arp.setProtocolType(ARP.PROTO_TYPE_IP);
-			
-			// Set Hardware address length
-			arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
-			
-			// Set Protocol addr length
-			arp.setProtocolAddressLength((byte)4);
-			
-			// Set Opcode
-			arp.setOpCode(ARP.OP_REQUEST);
-			
-			// Set sender Hardware address
-			arp.setSenderHardwareAddress(if_entry.getValue().getMacAddress().toBytes());
-			
-			// Set Sender Protocol Address
-			arp.setSenderProtocolAddress(if_entry.getValue().getIpAddress());
-			
-			// Set Target Hardware Address
-			byte[] empty = new byte[arp.getHardwareAddressLength()];
-			for (int i = 0; i < arp.getHardwareAddressLength(); i++) {
-				empty[i] = 0;
-			}			
-			arp.setTargetHardwareAddress(empty);
-			
-			// Set Target protocol Address
-			arp.setTargetProtocolAddress(nextHop);
-
-			// Do broadcast to this interface (DEST)
-			this.sendPacket(ether, if_entry.getValue());
-			
+		// Copy the prebuilt request and fill in the target IP and destination MAC
+		byte[] request = this.getArpTemplate(outIface).clone();
+		ByteBuffer frame = ByteBuffer.wrap(request, CommandPacket.HEADER_LENGTH, 
+				ARP_FRAME_LENGTH);
+		putMac(frame, CommandPacket.HEADER_LENGTH, dstMac);
+		frame.putInt(CommandPacket.HEADER_LENGTH + ARP_FRAME_LENGTH - 4, nextHop);
 		
-			}
+		// The copy is never reused, so the VNS command header is written into
+		// the space in front of the request and the request is sent in place
+		return this.sendFrame(frame, outIface, FrameLease.DISPOSABLE);
+	}
+	
+	/**
+	 * Gets the prebuilt ARP request for an interface, building it the first 
+	 * time and whenever the interface's addresses change.
+	 * @param iface the interface the request is sent from
+	 * @return a VNS command header's worth of space followed by an ARP 
+	 *         request with the target IP and destination MAC left blank
+	 */
+	private byte[] getArpTemplate(Iface iface) {
+		byte[] template = this.arpTemplates.get(iface);
+		long mac = iface.getMacAddress().toLong();
+		ByteBuffer buf = (template == null) ? null : ByteBuffer.wrap(template);
+		int sender = CommandPacket.HEADER_LENGTH + ETHER_HEADER_LENGTH + 8;
+		if (buf != null && buf.getShort(sender) == (short)(mac >>> 32)
+				&& buf.getInt(sender + 2) == (int)mac
+				&& buf.getInt(sender + 6) == iface.getIpAddress()) {
+			return template;
+		}
 		
+		// Build the request once through the packet classes
+		ARP arp = new ARP();
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(ARP.OP_REQUEST);
+		arp.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(iface.getIpAddress());
+		arp.setTargetHardwareAddress(new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arp.setTargetProtocolAddress(0);
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(iface.getMacAddress().toBytes());
+		ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+		ether.setPayload(arp);
+		byte[] bytes = ether.serialize();
+		
+		template = new byte[CommandPacket.HEADER_LENGTH + ARP_FRAME_LENGTH];
+		System.arraycopy(bytes, 0, template, CommandPacket.HEADER_LENGTH, 
+				ARP_FRAME_LENGTH);
+		this.arpTemplates.put(iface, template);
+		return template;
 	}
 	
 	/**
@@ -365,7 +620,7 @@ public class Router extends Device
 	 * @param etherPacket the Ethernet packet that was received that prompted the ICMP
 	 * @param inIface the interface on which the received packet came into
 	 */
-	private void ICMPmake(Ethernet etherPacket, Iface inIface, byte icmpType, byte icmpCode) {
+	void ICMPmake(Ethernet etherPacket, Iface inIface, byte icmpType, byte icmpCode) {
 		Ethernet ether = new Ethernet();
 		IPv4 ip = new IPv4();
 		ICMP icmp = new ICMP();
@@ -438,37 +693,30 @@ public class Router extends Device
 	
 	/**
 	 * Handles the attempt to send packets, if there is no entry in the ARP cache
-	 * it places the packet into a queue and creates a thread to send ARP requests.
-	 * If there is an ARP entry then the packet is sent right away
+	 * it hands the packet to the ARP resolver, which queues it and sends ARP 
+	 * requests. If there is an ARP entry then the packet is sent right away
 	 * @param etherPacket the Ethernet packet that was received
 	 * @param inIface, the interface that the packet was received on
 	 * @param nextHop, the IP of the next hop for the packet
 	 * @param outIface, the interface the packet should be sent out on
 	 */
 	private void checkARPCache(Ethernet etherPacket, Iface inIface, int nextHop, Iface outIface) {
-		ArpEntry arpEntry = this.arpCache.lookup(nextHop);
+		// Read the expiry first, so a MAC that is found has an expiry too
+		long arpExpires = this.arpCache.getExpires(nextHop);
+		long mac = (IntLongMap.NO_VALUE == arpExpires) 
+				? IntLongMap.NO_VALUE : this.arpCache.lookupMac(nextHop);
 		
 		// If there is no arp Entry, queue the packet
-        if (null == arpEntry) { 
+        AdjacencyTable.Adjacency adjacency = (IntLongMap.NO_VALUE == mac) 
+        		? null : this.adjacencies.get(outIface, nextHop, mac);
+        if (null == adjacency || !checkArpAge(adjacency, arpExpires)) { 
 	
-			// If there is no queue for that IP address, make a new queue and add packet to queue
-			if(!packetQueues.containsKey(nextHop)) {
-				
-				ARPRequester newRequester = new ARPRequester(packetQueues, etherPacket, inIface, nextHop);				
-				Queue newQueue = new Queue(newRequester);
-				newQueue.safeInsert(new QueuePacket(etherPacket, inIface));
-				packetQueues.put(nextHop, newQueue);
-				newRequester.start();
-				
-			// If there already is a queue, add the packet to the queue
-			} else {
-				Queue curQueue = packetQueues.get(nextHop);
-				curQueue.safeInsert(new QueuePacket(etherPacket, inIface));
-			}
+			// Queue the packet until the next hop is resolved
+			this.arpResolver.enqueue(etherPacket, inIface, nextHop, outIface);
 			
 		// If an ARP entry was found, send packet
 		} else {
-			etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+			etherPacket.setDestinationMACAddress(adjacency.getDestinationMac());
 			this.sendPacket(etherPacket, outIface);
 		}
 	}
@@ -492,27 +740,10 @@ public class Router extends Device
 			
 			// This is a response, update table
 			List<RIPv2Entry> ripEntries = rip.getEntries();
-			for(RIPv2Entry ripEntry : ripEntries) {
-				
-				RouteEntry bestEntry = routeTable.find(ripEntry.getAddress(), ripEntry.getSubnetMask());
-				
-				if(bestEntry == null) {
-					
-					// This entry Doesn't exist, add to route table
-					routeTable.insert(ripEntry.getAddress(), ip.getSourceAddress(), ripEntry.getSubnetMask(), inIface, ripEntry.getMetric() + 1, false);
-				} else {
-					
-					// Entry is in table, check if needs to be updated
-					if ((bestEntry.getMetric() > (ripEntry.getMetric() + 1)) || (bestEntry.getGatewayAddress() == ip.getSourceAddress())) {
-						
-						// Found a better path, update entry
-						bestEntry.setGatewayAddress(ip.getSourceAddress());
-						bestEntry.setMetric(ripEntry.getMetric() + 1);
-						bestEntry.setInterface(inIface);
-						bestEntry.setUpdateTime();
-					}
-				}
-			}
+			
+			// Add, replace or refresh the entries in one step, since another
+			// worker may be handling a response for the same prefixes
+			routeTable.learn(ripEntries, ip.getSourceAddress(), inIface);
 		}
 		
 		
@@ -520,9 +751,17 @@ public class Router extends Device
 	
 	/**
 	 * Adds all interfaces as RouteEntries to routeTable and
-	 * starts thread to manage RouteTable
+	 * starts timers to manage RouteTable
 	 */
 	public void loadAllIfaces() {
+		loadIfaceRoutes();
+		startRip();
+	}
+	
+	/**
+	 * Adds all interfaces as RouteEntries to routeTable
+	 */
+	public void loadIfaceRoutes() {
 		HashMap<String, Iface> interfaces = (HashMap)getInterfaces();
 		for(Map.Entry<String, Iface> if_entry : interfaces.entrySet()) {
 			Iface curIface = if_entry.getValue();
@@ -530,7 +769,15 @@ public class Router extends Device
 			// Add an entry to the route table for this interface
 			routeTable.insert((curIface.getIpAddress() & curIface.getSubnetMask()), 0, curIface.getSubnetMask(), if_entry.getValue(), 0, true);
 		}
-		// Without static Routetable, start thread to manage route table entries
+	}
+	
+	/**
+	 * Sends RIP requests and starts timers to manage routeTable. Neighbors
+	 * answer requests with the routes they have, so when starting many
+	 * routers at once, load every router's interface routes first.
+	 */
+	public void startRip() {
+		// Without static Routetable, start timers to manage route table entries
 		ripManager = new RIPResponder(routeTable);
 		ripManager.start();
 	}
@@ -549,6 +796,10 @@ public class Router extends Device
 		
 		ARP arpPacket = (ARP)etherPacket.getPayload();
 		int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
+		
+		// Learn the sender's addresses from every request and reply
+		snoopArpSender(arpPacket, inIface, targetIp == inIface.getIpAddress());
+		
 		if ((arpPacket.getOpCode() == ARP.OP_REQUEST) && (targetIp == inIface.getIpAddress())) {
 			
 			
@@ -599,191 +850,119 @@ public class Router extends Device
 			this.sendPacket(ether, inIface);
 		}
 		
-		if ((arpPacket.getOpCode() == ARP.OP_REPLY) && (targetIp == inIface.getIpAddress())) {
-			int ipAddr = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
-			MACAddress macAddr = new MACAddress(arpPacket.getSenderHardwareAddress());
-			arpCache.insert(macAddr, ipAddr);
-			
-			// Clear queue
-			Queue curQueue = packetQueues.get(ipAddr);
-			if(curQueue == null) {
-				return;
-			}
-			
-			// Signal thread that the IP address was found
-			curQueue.requester.found();
-			LinkedList<QueuePacket> queuedPackets = curQueue.queuedPackets;
-			int listSize = queuedPackets.size();
-			for(int i = 0; i < listSize; i++ ) {
-				QueuePacket value = curQueue.safeRemove();
-				value.ether.setDestinationMACAddress(macAddr.toBytes());
-				if(!sendPacket(value.ether, inIface)) {
-					System.out.println("ERROR SENDING PACKET");
-				}
-			}
-			packetQueues.remove(ipAddr);
-		}
-		
 	}
 	
 	/**
-	 * Object used for queued packets while waiting for ARP replies.
-	 */
-	private class QueuePacket {
-		Ethernet ether;
-		Iface inIface;
-		
-		public QueuePacket (Ethernet ether, Iface inIface) {
-			this.ether = ether;
-			this.inIface = inIface;
-		}
-	}
-	
-	/**
-	 * Object used as a queue for multiple packets waiting for an ARP response from the 
-	 * same IP address
+	 * Learns the sender's IP->MAC mapping from an ARP request or reply. A
+	 * mapping is added when the packet is aimed at us or the sender is being
+	 * resolved; otherwise (e.g., gratuitous ARP or a request for another
+	 * host) only an existing entry is refreshed.
+	 * @param arpPacket the ARP packet that was received
+	 * @param inIface the interface the packet was received on
+	 * @param targeted true if the packet's target IP is the interface's IP
 	 */
-	private class Queue {
-		ARPRequester requester;
-		// Use this instead of a linked list as this is meant to be used
-		// for concurrency
-		LinkedList<QueuePacket> queuedPackets;
-		//ConcurrentHashMap<String, QueuePacket> queuedPackets;
-		
-		//Constructor method
-		public Queue(ARPRequester newRequester) {
-			this.requester = newRequester;
-			this.queuedPackets = new LinkedList<QueuePacket>();
+	private void snoopArpSender(ARP arpPacket, Iface inIface, boolean targeted) {
+		int ipAddr = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
+		MACAddress macAddr = new MACAddress(arpPacket.getSenderHardwareAddress());
+		
+		// Ignore probes, our own address, off-link senders and group MACs
+		if (0 == ipAddr || ipAddr == inIface.getIpAddress()
+				|| (ipAddr & inIface.getSubnetMask()) 
+					!= (inIface.getIpAddress() & inIface.getSubnetMask())
+				|| macAddr.isMulticast()) {
+			return;
 		}
 		
-		/**
-		* As a LinkedList is being used, this is a thread-safe insert function
-		*/
-		public void safeInsert(QueuePacket queuePacket) {
-			synchronized(this.queuedPackets) {
-				this.queuedPackets.add(queuePacket);
-			}
+		// Static entries are never overwritten by snooping
+		if (arpCache.lookupMac(ipAddr) != IntLongMap.NO_VALUE
+				&& 0 == arpCache.getExpires(ipAddr)) {
+			return;
 		}
-		/**
-		 * As a Linked List is being used, this is a thread-safe removal function
-		 */
-		public QueuePacket safeRemove() {
-			synchronized(this.queuedPackets) {
-				return this.queuedPackets.remove(0);
-			}
+		
+		if (targeted || this.arpResolver.isResolving(ipAddr)) {
+			arpCache.insert(macAddr, ipAddr);
+		} else if (!arpCache.refresh(macAddr, ipAddr)) {
+			return;
 		}
+		
+		// Send packets queued for this IP address
+		this.arpResolver.resolved(ipAddr, macAddr);
 	}
 	
 	/**
-	 * Thread to manage the sending of Unsolicited RIP replies and
+	 * Timers to manage the sending of Unsolicited RIP replies and
 	 * removing route entries from the table if they have not been
 	 * updated in 30 seconds
 	 */
-	class RIPResponder extends Thread {
+	class RIPResponder implements RouteTable.Listener {
 		private RouteTable routeTable;
+		private Clock clock;
+		private Clock.Timer broadcastTimer;
+		private volatile boolean stopped;
+		
 		public RIPResponder(RouteTable routeTable) {
 			this.routeTable = routeTable;
 		}
 		
-		//This starts the thread
-		public void run() {
-			long prevCheckTime = System.currentTimeMillis();
+		// Send RIP requests and start the timers
+		public void start() {
+			clock = Clock.get();
+			routeTable.addListener(this);
 			
-			// Send RIP request on startup
 			HashMap<String, Iface> interfaces = (HashMap)getInterfaces();
 			for(Map.Entry<String, Iface> if_entry : interfaces.entrySet()) {
 					RIPmake(null, if_entry.getValue(), false, false);
 			}
 			
-			while (true) {
-				// If it has been more than 10 seconds since previous unsolicited broadcast
-				// broadcast again
-				if((System.currentTimeMillis() - prevCheckTime) >= 10000) {
-					for(Map.Entry<String, Iface> if_entry : interfaces.entrySet()) {
-						RIPmake(null, if_entry.getValue(), true, false);
-					}
-					prevCheckTime = System.currentTimeMillis();
-				}
-				
-				// If any entry has not been updated in 30 seconds, remove the entry
-				for(RouteEntry entry: routeTable.getEntries()) {
-					if(!entry.isDirectlyConnected()) {
-						if((System.currentTimeMillis() - entry.getUpdateTime()) >= 30000){
-							routeTable.remove(entry.getDestinationAddress(), entry.getMaskAddress());
-						}
-					}
-				}
-								
-				// Check every second (don't need thread to be running all the time)
-				try {
-					this.sleep((long)1000);
-				} catch (Exception ex) {
-				}
+			// Every 10 seconds broadcast an unsolicited response
+			broadcastTimer = clock.schedule(new Runnable() {
+				public void run() { broadcast(); }
+			}, 10000, 10000);
+		}
+		
+		// Stop the timers; expiry timers still pending do nothing
+		public void stop() {
+			stopped = true;
+			routeTable.removeListener(this);
+			broadcastTimer.cancel();
+		}
+		
+		private void broadcast() {
+			HashMap<String, Iface> interfaces = (HashMap)getInterfaces();
+			for(Map.Entry<String, Iface> if_entry : interfaces.entrySet()) {
+				RIPmake(null, if_entry.getValue(), true, false);
 			}
-		}	
-	}
-	
-	/**
-	 * Thread used for every queue of packets while the process of sending ARP
-	 * requests and waiting for the responses.
-	 */
-	class ARPRequester extends Thread {
-		private volatile boolean found;
-		private boolean timeout;
-		private ConcurrentHashMap<Integer, Queue> packetQueues;
-		private int numPackets;
-		private Ethernet etherPacket;
-		private Iface inIface;
-		private int nextHop;
-		
-		public ARPRequester(ConcurrentHashMap<Integer, Queue> packetQueues, 
-			Ethernet etherPacket, Iface inIface, int nextHop) {
-				
-			this.found = false;
-			this.timeout = false;
-			this.packetQueues = packetQueues;
-			this.numPackets = 0;
-			this.etherPacket = etherPacket;
-			this.inIface = inIface;
-			this.nextHop = nextHop;
 		}
 		
-		// Signal from main thread that an ARP response has arrived and the ARP entry has
-		// been added
-		public void found() {
-			this.found = true;
+		// Each learned entry gets its own expiry timer, so there is no
+		// need to scan the whole table
+		public void routeChanged(RouteEntry oldEntry, RouteEntry newEntry) {
+			if(newEntry != null && !newEntry.isDirectlyConnected()) {
+				clock.schedule(new Expiry(newEntry), ROUTE_TIMEOUT);
+			}
 		}
 		
-		public void run() {
+		// If an entry has not been updated in 30 seconds, remove the entry.
+		// Refreshing an entry only updates its time, so when the timer fires
+		// for an entry that was refreshed, wait out the rest of its time.
+		private class Expiry implements Runnable {
+			private final RouteEntry entry;
+			
+			Expiry(RouteEntry entry) {
+				this.entry = entry;
+			}
 			
-			// Send packets for 3 seconds or until a response has been received
-			while ((!found) && (!timeout)) {
-				SendARPRequest(etherPacket, inIface, nextHop);
-				numPackets++;
-				try {
-					this.sleep((long)1000);
-				} catch (Exception ex) {
+			public void run() {
+				if(stopped) {
+					return;
 				}
-				if(numPackets == 3) {
-					// Remove Queue
-					timeout = true;
+				long age = clock.currentTimeMillis() - entry.getUpdateTime();
+				if(age < ROUTE_TIMEOUT) {
+					clock.schedule(this, ROUTE_TIMEOUT - age);
+				} else {
+					routeTable.remove(entry);
 				}
 			}
-			// If no response has been received, send out an ICMP packet for each queued packet
-			if (!found) {
-				// Remove queued packets
-				Queue curQueue = packetQueues.get(nextHop);
-				LinkedList<QueuePacket> queuedPackets = curQueue.queuedPackets;
-				int listSize = queuedPackets.size();
-				for( int i = 0 ; i < listSize; i++) {
-					QueuePacket curPacket = curQueue.safeRemove();
-					ICMPmake(curPacket.ether, curPacket.inIface, (byte)3, (byte)1);
-				}
-				// Remove Queue from collection of queues
-				packetQueues.remove(nextHop);
-			}	
 		}
-		
-		
 	}
 }
@@ -0,0 +1,66 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Clock;
+
+/**
+ * A token bucket rate limiter. Tokens accumulate at a fixed rate up to a
+ * maximum burst; each permitted event consumes one token.
+ */
+public class TokenBucket
+{
+	/** Tokens added per nanosecond */
+	private final double ratePerNano;
+
+	/** Maximum number of tokens in the bucket */
+	private final double burst;
+
+	/** Number of tokens currently in the bucket */
+	private double tokens;
+
+	/** Time (from {@link Clock#nanoTime}) tokens were last added */
+	private long lastRefill;
+
+	/** Number of events denied because the bucket was empty */
+	private long denied;
+
+	/**
+	 * Create a full token bucket.
+	 * @param ratePerSecond tokens added per second
+	 * @param burst maximum number of tokens in the bucket
+	 */
+	public TokenBucket(double ratePerSecond, int burst)
+	{
+		if (ratePerSecond <= 0 || burst < 1)
+		{ throw new IllegalArgumentException("Invalid rate or burst"); }
+		this.ratePerNano = ratePerSecond / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = Clock.get().nanoTime();
+		this.denied = 0;
+	}
+
+	/**
+	 * Consume a token if one is available.
+	 * @return true if the event is permitted
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		long now = Clock.get().nanoTime();
+		this.tokens = Math.min(this.burst,
+				this.tokens + (now - this.lastRefill) * this.ratePerNano);
+		this.lastRefill = now;
+		if (this.tokens < 1)
+		{
+			this.denied++;
+			return false;
+		}
+		this.tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * @return number of events denied because the bucket was empty
+	 */
+	public synchronized long getDenied()
+	{ return this.denied; }
+}
@@ -0,0 +1,18 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries frames sent out a port to the port at the other end of its link.
+ */
+public interface FrameSink
+{
+	/**
+	 * Deliver a frame sent out a port. The buffer is not used after this
+	 * returns, and its position and limit are left unchanged.
+	 * @param from port out which the frame was sent
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 */
+	public void deliver(Topology.Port from, ByteBuffer frame);
+}
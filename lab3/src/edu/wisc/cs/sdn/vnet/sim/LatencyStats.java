@@ -0,0 +1,121 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, with one bucket per microsecond up to a limit
+ * and one bucket for anything longer. Latencies can be recorded from many
+ * threads without locking.
+ */
+public class LatencyStats
+{
+	/** Default longest latency with its own bucket, in microseconds */
+	public static final int DEFAULT_LIMIT = 100000;
+
+	/** Number of latencies in each bucket; the last bucket holds every
+	 *  latency at or above the limit */
+	private final AtomicLongArray buckets;
+
+	/** Number of latencies recorded */
+	private final AtomicLong count;
+
+	/** Sum of the latencies recorded, in nanoseconds */
+	private final AtomicLong total;
+
+	/** Longest latency recorded, in nanoseconds */
+	private final AtomicLong max;
+
+	/**
+	 * Create an empty histogram.
+	 * @param limit longest latency with its own bucket, in microseconds
+	 */
+	public LatencyStats(int limit)
+	{
+		this.buckets = new AtomicLongArray(limit + 1);
+		this.count = new AtomicLong();
+		this.total = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency, in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+		{ nanos = 0; }
+		int bucket = (int)Math.min(nanos / 1000, this.buckets.length() - 1);
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.total.addAndGet(nanos);
+		long old;
+		while (nanos > (old = this.max.get()))
+		{
+			if (this.max.compareAndSet(old, nanos))
+			{ break; }
+		}
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount()
+	{ return this.count.get(); }
+
+	/**
+	 * @return mean latency, in microseconds; 0 if none were recorded
+	 */
+	public double getMean()
+	{
+		long count = this.count.get();
+		return (0 == count) ? 0 : this.total.get() / 1000.0 / count;
+	}
+
+	/**
+	 * @return longest latency recorded, in microseconds
+	 */
+	public double getMax()
+	{ return this.max.get() / 1000.0; }
+
+	/**
+	 * @param percentile percentile to compute, between 0 and 100
+	 * @return latency (in microseconds) at or below which the percentile of
+	 *         recorded latencies lie; the limit if it lies in the last bucket
+	 */
+	public long getPercentile(double percentile)
+	{
+		long count = this.count.get();
+		if (0 == count)
+		{ return 0; }
+		long rank = (long)Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length(); i++)
+		{
+			seen += this.buckets.get(i);
+			if (seen >= rank)
+			{ return i; }
+		}
+		return this.buckets.length() - 1;
+	}
+
+	/**
+	 * Forget every recorded latency.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < this.buckets.length(); i++)
+		{ this.buckets.set(i, 0); }
+		this.count.set(0);
+		this.total.set(0);
+		this.max.set(0);
+	}
+
+	public String toString()
+	{
+		return String.format("mean %.1f us, p50 %d us, p99 %d us, max %.1f us",
+				this.getMean(), this.getPercentile(50), this.getPercentile(99),
+				this.getMax());
+	}
+}
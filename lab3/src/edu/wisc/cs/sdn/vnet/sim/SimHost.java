@@ -0,0 +1,188 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A simulated end host attached to a port of the network. It answers ARP
+ * requests for its address, and records the latency of the probe packets it
+ * receives. Anything else it receives is counted and discarded.
+ */
+public class SimHost
+{
+	/** UDP port to which probe packets are sent */
+	public static final int PROBE_PORT = 9;
+
+	/** Offset in a probe frame of its sequence number, followed by the time
+	 *  (from {@link System#nanoTime}) it was sent */
+	public static final int PROBE_OFFSET = 14 + 20 + 8;
+
+	/** Length of the probe fields */
+	public static final int PROBE_LENGTH = 16;
+
+	/** TTL with which probes are sent, so the number of routers they
+	 *  crossed can be told from the TTL they arrive with */
+	public static final byte PROBE_TTL = 64;
+
+	/** Length of an Ethernet frame holding an ARP packet for IPv4 */
+	private static final int ARP_FRAME_LENGTH = 14 + 28;
+
+	/** Port through which the host is attached */
+	private final Topology.Port port;
+
+	/** Where frames sent by the host are delivered */
+	private final FrameSink network;
+
+	/** Latency of probes received */
+	private final LatencyStats latency;
+
+	/** Total routers crossed by the probes received */
+	private final AtomicLong hops;
+
+	/** Counters */
+	private final AtomicLong probes;
+	private final AtomicLong arpReplies;
+	private final AtomicLong ignored;
+
+	/**
+	 * Create a host.
+	 * @param port port through which the host is attached
+	 * @param network where frames sent by the host are delivered
+	 */
+	public SimHost(Topology.Port port, FrameSink network)
+	{
+		this.port = port;
+		this.network = network;
+		this.latency = new LatencyStats(LatencyStats.DEFAULT_LIMIT);
+		this.hops = new AtomicLong();
+		this.probes = new AtomicLong();
+		this.arpReplies = new AtomicLong();
+		this.ignored = new AtomicLong();
+	}
+
+	/**
+	 * @return port through which the host is attached
+	 */
+	public Topology.Port getPort()
+	{ return this.port; }
+
+	/**
+	 * Send a frame out the host's port.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 */
+	public void send(ByteBuffer frame)
+	{ this.network.deliver(this.port, frame); }
+
+	/**
+	 * Handle a frame that arrived at the host. The buffer is not used after
+	 * this returns.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 */
+	public void receive(ByteBuffer frame)
+	{
+		long now = System.nanoTime();
+		int base = frame.position();
+		int len = frame.remaining();
+		if (len < 14)
+		{
+			this.ignored.incrementAndGet();
+			return;
+		}
+		short etherType = frame.getShort(base + 12);
+
+		if (Ethernet.TYPE_IPv4 == etherType && len >= PROBE_OFFSET + PROBE_LENGTH
+				&& IPv4.PROTOCOL_UDP == frame.get(base + 14 + 9)
+				&& frame.getInt(base + 14 + 16) == this.port.getIpAddress()
+				&& (frame.getShort(base + 14 + 20 + 2) & 0xffff) == PROBE_PORT)
+		{
+			this.hops.addAndGet(PROBE_TTL - (frame.get(base + 14 + 8) & 0xff));
+			this.probes.incrementAndGet();
+			this.latency.record(now - frame.getLong(base + PROBE_OFFSET + 8));
+			return;
+		}
+
+		if (Ethernet.TYPE_ARP == etherType && len >= ARP_FRAME_LENGTH
+				&& ARP.OP_REQUEST == frame.getShort(base + 14 + 6)
+				&& frame.getInt(base + 14 + 24) == this.port.getIpAddress())
+		{
+			this.replyToArp(frame, base);
+			return;
+		}
+
+		this.ignored.incrementAndGet();
+	}
+
+	/**
+	 * Answer an ARP request for the host's address.
+	 * @param request buffer holding the request
+	 * @param base absolute index of the start of the request
+	 */
+	private void replyToArp(ByteBuffer request, int base)
+	{
+		byte[] mac = this.port.getMacAddress().toBytes();
+		byte[] senderMac = new byte[6];
+		for (int i = 0; i < 6; i++)
+		{ senderMac[i] = request.get(base + 14 + 8 + i); }
+		int senderIp = request.getInt(base + 14 + 14);
+
+		ByteBuffer reply = ByteBuffer.allocate(ARP_FRAME_LENGTH);
+		reply.put(senderMac);
+		reply.put(mac);
+		reply.putShort(Ethernet.TYPE_ARP);
+		reply.putShort(ARP.HW_TYPE_ETHERNET);
+		reply.putShort(ARP.PROTO_TYPE_IP);
+		reply.put((byte)6);
+		reply.put((byte)4);
+		reply.putShort(ARP.OP_REPLY);
+		reply.put(mac);
+		reply.putInt(this.port.getIpAddress());
+		reply.put(senderMac);
+		reply.putInt(senderIp);
+		reply.flip();
+		this.arpReplies.incrementAndGet();
+		this.send(reply);
+	}
+
+	/**
+	 * @return latency of the probes received
+	 */
+	public LatencyStats getLatency()
+	{ return this.latency; }
+
+	/**
+	 * @return number of probes received
+	 */
+	public long getProbesReceived()
+	{ return this.probes.get(); }
+
+	/**
+	 * @return mean number of routers crossed by the probes received
+	 */
+	public double getMeanHops()
+	{
+		long probes = this.probes.get();
+		return (0 == probes) ? 0 : (double)this.hops.get() / probes;
+	}
+
+	/**
+	 * @return number of ARP requests answered
+	 */
+	public long getArpReplies()
+	{ return this.arpReplies.get(); }
+
+	/**
+	 * @return number of frames received that were not probes or ARP
+	 *         requests for the host
+	 */
+	public long getIgnored()
+	{ return this.ignored.get(); }
+
+	public String toString()
+	{ return this.port.getNode().getName(); }
+}
@@ -0,0 +1,154 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network of devices described by a topology, whose hosts are simulated.
+ * Subclasses decide how frames reach the switches and routers.
+ */
+public abstract class SimNetwork implements FrameSink
+{
+	/** Network whose nodes are simulated or attached */
+	protected final Topology topo;
+
+	/** Simulated hosts, by name */
+	protected final Map<String,SimHost> hosts;
+
+	/** Counters */
+	protected final AtomicLong relayed;
+	protected final AtomicLong dropped;
+
+	/**
+	 * Create a network for a topology, with a simulated host for each of its
+	 * hosts.
+	 * @param topo the topology
+	 */
+	protected SimNetwork(Topology topo)
+	{
+		this.topo = topo;
+		this.hosts = new LinkedHashMap<String,SimHost>();
+		for (Topology.Node node : topo.getNodes())
+		{
+			if (Topology.Type.HOST == node.getType()
+					&& !node.getPorts().isEmpty())
+			{
+				this.hosts.put(node.getName(),
+						new SimHost(node.getPorts().get(0), this));
+			}
+		}
+		this.relayed = new AtomicLong();
+		this.dropped = new AtomicLong();
+	}
+
+	/**
+	 * Deliver a frame to a simulated host.
+	 * @param to port of the host
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 */
+	protected void deliverToHost(Topology.Port to, ByteBuffer frame)
+	{
+		this.hosts.get(to.getNode().getName()).receive(frame);
+		this.relayed.incrementAndGet();
+	}
+
+	/**
+	 * Create a traffic generator from a specification of the form
+	 * <code>src:dst:pps[:frame_size[:flows]]</code>.
+	 * @param spec the specification
+	 * @return the generator, not yet started
+	 */
+	public TrafficGenerator parseTraffic(String spec)
+	{
+		String[] parts = spec.split(":");
+		if (parts.length < 3 || parts.length > 5)
+		{ throw new IllegalArgumentException(spec); }
+		SimHost src = this.hosts.get(parts[0]);
+		SimHost dst = this.hosts.get(parts[1]);
+		if (null == src || null == dst)
+		{ throw new IllegalArgumentException("Unknown host in " + spec); }
+		long rate = Long.parseLong(parts[2]);
+		int size = (parts.length > 3) ? Integer.parseInt(parts[3])
+				: TrafficGenerator.MIN_FRAME_SIZE;
+		int flows = (parts.length > 4) ? Integer.parseInt(parts[4]) : 1;
+		return new TrafficGenerator(this.topo, src, dst, rate, size, flows);
+	}
+
+	/**
+	 * Print the rate at which probes are sent and received, and their
+	 * latency, once a second.
+	 * @param generators generators sending probes
+	 * @param duration how long to report for, in seconds; 0 for ever
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void report(List<TrafficGenerator> generators, int duration)
+			throws InterruptedException
+	{
+		long lastSent = 0;
+		long lastReceived = 0;
+		for (int second = 1; 0 == duration || second <= duration; second++)
+		{
+			Thread.sleep(1000);
+			long sent = 0;
+			for (TrafficGenerator generator : generators)
+			{ sent += generator.getSent(); }
+			long received = 0;
+			for (SimHost host : this.hosts.values())
+			{
+				received += host.getProbesReceived();
+				LatencyStats latency = host.getLatency();
+				if (latency.getCount() > 0)
+				{
+					double hops = host.getMeanHops();
+					System.out.println(String.format(
+							"  %s: %s, %.1f hops, %.1f us/hop", host, latency,
+							hops, latency.getMean() / Math.max(hops, 1)));
+				}
+			}
+			System.out.println(String.format(
+					"%4ds tx %d pps, rx %d pps, relayed %d, dropped %d",
+					second, sent - lastSent, received - lastReceived,
+					this.getRelayed(), this.getDropped()));
+			lastSent = sent;
+			lastReceived = received;
+		}
+	}
+
+	/**
+	 * @param name name of a host in the topology
+	 * @return the simulated host; null if there is no host with the name
+	 */
+	public SimHost getHost(String name)
+	{ return this.hosts.get(name); }
+
+	/**
+	 * @return every simulated host
+	 */
+	public Collection<SimHost> getHosts()
+	{ return Collections.unmodifiableCollection(this.hosts.values()); }
+
+	/**
+	 * @return the topology
+	 */
+	public Topology getTopology()
+	{ return this.topo; }
+
+	/**
+	 * @return number of frames delivered to a device or simulated host
+	 */
+	public long getRelayed()
+	{ return this.relayed.get(); }
+
+	/**
+	 * @return number of frames dropped because there was nowhere to deliver
+	 *         them or the device was not keeping up
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+}
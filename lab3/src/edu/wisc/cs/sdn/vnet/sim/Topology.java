@@ -0,0 +1,409 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * A virtual network described by a topology file, as used by
+ * <code>run_mininet.py</code>. Each line declares a node or a link:
+ * <pre>
+ * host h1 10.0.1.101/24 10.0.1.1
+ * switch s1
+ * router r1 10.0.1.1/24 10.0.2.1/24
+ * link r1 h1
+ * </pre>
+ * A host's gateway may be <code>-</code> for none. Ports are numbered in the
+ * order links are declared: a host's only port is <code>eth0</code>, and the
+ * ports of switches and routers are <code>eth1</code>, <code>eth2</code>,
+ * etc. A router's Nth port takes its Nth address. Every port is given a
+ * distinct, locally administered MAC address.
+ */
+public class Topology
+{
+	/** Kinds of nodes */
+	public enum Type { HOST, SWITCH, ROUTER }
+
+	/**
+	 * A host, switch, or router.
+	 */
+	public static class Node
+	{
+		private final String name;
+		private final Type type;
+		private final int index;
+		private final int[] addresses;
+		private final int[] masks;
+		private final int gateway;
+		private final List<Port> ports;
+
+		Node(String name, Type type, int index, int[] addresses, int[] masks,
+				int gateway)
+		{
+			this.name = name;
+			this.type = type;
+			this.index = index;
+			this.addresses = addresses;
+			this.masks = masks;
+			this.gateway = gateway;
+			this.ports = new ArrayList<Port>();
+		}
+
+		/**
+		 * @return name of the node
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @return kind of node
+		 */
+		public Type getType()
+		{ return this.type; }
+
+		/**
+		 * @return IP address of a host's gateway; 0 if it has none or the node
+		 *         is not a host
+		 */
+		public int getGateway()
+		{ return this.gateway; }
+
+		/**
+		 * @return ports of the node, in order
+		 */
+		public List<Port> getPorts()
+		{ return Collections.unmodifiableList(this.ports); }
+
+		/**
+		 * @param name name of a port
+		 * @return the port; null if the node has no port with the name
+		 */
+		public Port getPort(String name)
+		{
+			for (Port port : this.ports)
+			{
+				if (port.name.equals(name))
+				{ return port; }
+			}
+			return null;
+		}
+
+		public String toString()
+		{ return this.name; }
+	}
+
+	/**
+	 * A port of a node, attached to a port of another node.
+	 */
+	public static class Port
+	{
+		private final Node node;
+		private final String name;
+		private final MACAddress mac;
+		private final int ip;
+		private final int mask;
+		private Port peer;
+
+		Port(Node node, String name, MACAddress mac, int ip, int mask)
+		{
+			this.node = node;
+			this.name = name;
+			this.mac = mac;
+			this.ip = ip;
+			this.mask = mask;
+			this.peer = null;
+		}
+
+		/**
+		 * @return node to which the port belongs
+		 */
+		public Node getNode()
+		{ return this.node; }
+
+		/**
+		 * @return name of the port, e.g., eth1
+		 */
+		public String getName()
+		{ return this.name; }
+
+		/**
+		 * @return MAC address of the port
+		 */
+		public MACAddress getMacAddress()
+		{ return this.mac; }
+
+		/**
+		 * @return IP address of the port; 0 if it has none
+		 */
+		public int getIpAddress()
+		{ return this.ip; }
+
+		/**
+		 * @return subnet mask of the port; 0 if it has none
+		 */
+		public int getSubnetMask()
+		{ return this.mask; }
+
+		/**
+		 * @return port at the other end of the link
+		 */
+		public Port getPeer()
+		{ return this.peer; }
+
+		public String toString()
+		{ return this.node.name + "." + this.name; }
+	}
+
+	/** Nodes by name, in the order declared */
+	private final Map<String,Node> nodes;
+
+	/**
+	 * Create an empty topology.
+	 */
+	public Topology()
+	{ this.nodes = new LinkedHashMap<String,Node>(); }
+
+	/**
+	 * Load a topology from a file.
+	 * @param filename name of the file
+	 * @return the topology
+	 * @throws IOException if the file cannot be read or is invalid
+	 */
+	public static Topology load(String filename) throws IOException
+	{
+		Topology topo = new Topology();
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		try
+		{
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				line = line.trim();
+				if (0 == line.length() || line.startsWith("#"))
+				{ continue; }
+				try
+				{ topo.parseLine(line); }
+				catch (IllegalArgumentException e)
+				{
+					throw new IOException(String.format(
+							"Error in topology file %s line %d: %s", filename,
+							lineNumber, e.getMessage()));
+				}
+			}
+		}
+		finally
+		{ reader.close(); }
+		return topo;
+	}
+
+	/**
+	 * Generate a tree of routers, each with a host attached. Router
+	 * <code>rN</code> has host <code>hN</code>; <code>r1</code> is the root,
+	 * and the parent of <code>rN</code> is <code>r((N-2)/fanout+1)</code>.
+	 * Every link is its own /24 subnet of 10.0.0.0/8. Keep the depth of the
+	 * tree below 8 if it is to be routed with RIP, whose longest path is 15
+	 * hops.
+	 * @param routers number of routers, at most 32767
+	 * @param fanout number of children of each router
+	 * @return the topology
+	 */
+	public static Topology tree(int routers, int fanout)
+	{
+		if (routers < 1 || routers > 32767 || fanout < 1)
+		{ throw new IllegalArgumentException("Invalid tree"); }
+
+		// Link L is subnet 10.(L/256).(L%256).0/24; link i-1 joins router i
+		// to its host, and link routers+i-2 joins router i to its parent
+		Topology topo = new Topology();
+		for (int i = 1; i <= routers; i++)
+		{
+			String subnet = linkSubnet(i - 1);
+			topo.parseLine(String.format("host h%d %s.100/24 %s.1", i, subnet,
+					subnet));
+		}
+		for (int i = 1; i <= routers; i++)
+		{
+			StringBuilder line = new StringBuilder("router r" + i);
+			line.append(' ').append(linkSubnet(i - 1)).append(".1/24");
+			if (i > 1)
+			{ line.append(' ').append(linkSubnet(routers + i - 2)).append(".2/24"); }
+			for (int child = (i - 1) * fanout + 2;
+					child <= Math.min(i * fanout + 1, routers); child++)
+			{ line.append(' ').append(linkSubnet(routers + child - 2)).append(".1/24"); }
+			topo.parseLine(line.toString());
+		}
+		for (int i = 1; i <= routers; i++)
+		{ topo.parseLine(String.format("link r%d h%d", i, i)); }
+		for (int i = 2; i <= routers; i++)
+		{ topo.parseLine(String.format("link r%d r%d", (i - 2) / fanout + 1, i)); }
+		return topo;
+	}
+
+	/**
+	 * @return first three bytes of the subnet of a generated link
+	 */
+	private static String linkSubnet(int link)
+	{ return String.format("10.%d.%d", link >> 8, link & 0xff); }
+
+	/**
+	 * Add the node or link declared by one line of a topology file.
+	 * @param line the line
+	 */
+	public void parseLine(String line)
+	{
+		String[] parts = line.split("\\s+");
+		if (parts[0].equals("host"))
+		{
+			if (parts.length != 4 || parts[2].indexOf('/') < 0)
+			{ throw new IllegalArgumentException(line); }
+			int[] addr = parsePrefix(parts[2]);
+			int gateway = parts[3].equals("-") ? 0
+					: IPv4.toIPv4Address(parts[3]);
+			this.addNode(new Node(parts[1], Type.HOST, this.nodes.size(),
+					new int[] { addr[0] }, new int[] { addr[1] }, gateway));
+		}
+		else if (parts[0].equals("switch"))
+		{
+			if (parts.length != 2)
+			{ throw new IllegalArgumentException(line); }
+			this.addNode(new Node(parts[1], Type.SWITCH, this.nodes.size(),
+					new int[0], new int[0], 0));
+		}
+		else if (parts[0].equals("router"))
+		{
+			if (parts.length < 3)
+			{ throw new IllegalArgumentException(line); }
+			int[] addresses = new int[parts.length - 2];
+			int[] masks = new int[parts.length - 2];
+			for (int i = 2; i < parts.length; i++)
+			{
+				int[] addr = parsePrefix(parts[i]);
+				addresses[i - 2] = addr[0];
+				masks[i - 2] = addr[1];
+			}
+			this.addNode(new Node(parts[1], Type.ROUTER, this.nodes.size(),
+					addresses, masks, 0));
+		}
+		else if (parts[0].equals("link"))
+		{
+			if (parts.length != 3)
+			{ throw new IllegalArgumentException(line); }
+			Port a = this.addPort(this.getExisting(parts[1]));
+			Port b = this.addPort(this.getExisting(parts[2]));
+			a.peer = b;
+			b.peer = a;
+		}
+		else
+		{ throw new IllegalArgumentException(line); }
+	}
+
+	/**
+	 * @param prefix address and prefix length, e.g., 10.0.1.1/24
+	 * @return the address and the subnet mask
+	 */
+	private static int[] parsePrefix(String prefix)
+	{
+		int slash = prefix.indexOf('/');
+		if (slash < 0)
+		{ throw new IllegalArgumentException(prefix); }
+		int ip = IPv4.toIPv4Address(prefix.substring(0, slash));
+		int length = Integer.parseInt(prefix.substring(slash + 1));
+		if (length < 0 || length > 32)
+		{ throw new IllegalArgumentException(prefix); }
+		int mask = (0 == length) ? 0 : (0xffffffff << (32 - length));
+		return new int[] { ip, mask };
+	}
+
+	private void addNode(Node node)
+	{
+		if (this.nodes.containsKey(node.name))
+		{ throw new IllegalArgumentException("Duplicate node " + node.name); }
+		this.nodes.put(node.name, node);
+	}
+
+	private Node getExisting(String name)
+	{
+		Node node = this.nodes.get(name);
+		if (null == node)
+		{ throw new IllegalArgumentException("Unknown node " + name); }
+		return node;
+	}
+
+	/**
+	 * Give a node its next port.
+	 * @param node the node
+	 * @return the new port
+	 */
+	private Port addPort(Node node)
+	{
+		int number = node.ports.size();
+		String name;
+		int ip = 0;
+		int mask = 0;
+		if (Type.HOST == node.type)
+		{
+			if (number > 0)
+			{ throw new IllegalArgumentException("Host has several links"); }
+			name = "eth0";
+			ip = node.addresses[0];
+			mask = node.masks[0];
+		}
+		else
+		{
+			name = "eth" + (number + 1);
+			if (number < node.addresses.length)
+			{
+				ip = node.addresses[number];
+				mask = node.masks[number];
+			}
+		}
+		MACAddress mac = new MACAddress(new byte[] { 0x02, 0,
+				(byte)(node.index >> 8), (byte)node.index, 0,
+				(byte)(number + 1) });
+		Port port = new Port(node, name, mac, ip, mask);
+		node.ports.add(port);
+		return port;
+	}
+
+	/**
+	 * @param name name of a node
+	 * @return the node; null if there is no node with the name
+	 */
+	public Node getNode(String name)
+	{ return this.nodes.get(name); }
+
+	/**
+	 * @return every node, in the order declared
+	 */
+	public Collection<Node> getNodes()
+	{ return Collections.unmodifiableCollection(this.nodes.values()); }
+
+	/**
+	 * Find the port that owns an IP address.
+	 * @param ip the IP address
+	 * @return the port; null if no port has the address
+	 */
+	public Port findPort(int ip)
+	{
+		for (Node node : this.nodes.values())
+		{
+			for (Port port : node.ports)
+			{
+				if (port.ip == ip)
+				{ return port; }
+			}
+		}
+		return null;
+	}
+}
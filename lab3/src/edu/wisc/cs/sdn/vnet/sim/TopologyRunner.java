@@ -0,0 +1,610 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Clock;
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.FrameLease;
+import edu.wisc.cs.sdn.vnet.FrameTransport;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
+import edu.wisc.cs.sdn.vnet.SimulatedClock;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Runs every switch and router of a topology in this process, joined by
+ * in-memory links instead of connections to a VNS server, so a network can
+ * be exercised at memory speed. Hosts are simulated (see {@link SimHost}).
+ * <p>
+ * A frame sent out a device's interface is copied onto the inbox of the
+ * device at the other end of the link, a lock-free queue. Devices with
+ * frames in their inbox are run by a small pool of delivery loops, each
+ * device by one loop at a time, so a device receives frames on one thread
+ * at a time just as it would from its VNS connection. An inbox holds a
+ * bounded number of frames; frames arriving at a full inbox are dropped.
+ */
+public class TopologyRunner extends SimNetwork
+{
+	/** Default number of frames an inbox holds */
+	public static final int DEFAULT_INBOX_CAPACITY = 4096;
+
+	/** Most frames a device receives before its loop moves on to another */
+	private static final int FRAMES_PER_TURN = 64;
+
+	/** How often convergence is checked, in milliseconds */
+	private static final long CONVERGENCE_POLL = 10;
+
+	/** How often the network is checked for frames in flight, in
+	 *  nanoseconds */
+	private static final long IDLE_POLL = 10000;
+
+	/** Time (in milliseconds since the epoch) a simulated clock starts at */
+	private static final long SIMULATED_START = 1000000000000L;
+
+	/**
+	 * A frame in flight to a device.
+	 */
+	private static class Delivery
+	{
+		final byte[] frame;
+		final Iface inIface;
+
+		Delivery(byte[] frame, Iface inIface)
+		{
+			this.frame = frame;
+			this.inIface = inIface;
+		}
+	}
+
+	/**
+	 * A device, its inbox, and the transport through which it sends.
+	 */
+	private class Attachment implements FrameTransport
+	{
+		final Device device;
+		final Topology.Node node;
+		final DeliveryLoop loop;
+		final ConcurrentLinkedQueue<Delivery> inbox;
+		final AtomicInteger queued;
+		final AtomicBoolean scheduled;
+
+		Attachment(Device device, Topology.Node node, DeliveryLoop loop)
+		{
+			this.device = device;
+			this.node = node;
+			this.loop = loop;
+			this.inbox = new ConcurrentLinkedQueue<Delivery>();
+			this.queued = new AtomicInteger();
+			this.scheduled = new AtomicBoolean();
+		}
+
+		public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+		{
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(etherPacket); }
+			return this.send(ByteBuffer.wrap(etherPacket.serialize()), ifaceName);
+		}
+
+		public boolean sendFrame(ByteBuffer frame, String ifaceName)
+		{
+			if (this.device.getLogFile() != null)
+			{ this.device.getLogFile().dump(frame); }
+			return this.send(frame, ifaceName);
+		}
+
+		public boolean sendFrame(ByteBuffer frame, String ifaceName,
+				FrameLease lease)
+		{
+			// Frames are copied onto the link, so the buffer is not held
+			return this.sendFrame(frame, ifaceName);
+		}
+
+		public boolean sendFrames(List<ByteBuffer> frames, String ifaceName)
+		{
+			boolean sent = true;
+			for (ByteBuffer frame : frames)
+			{ sent &= this.sendFrame(frame, ifaceName); }
+			return sent;
+		}
+
+		private boolean send(ByteBuffer frame, String ifaceName)
+		{
+			Topology.Port port = this.node.getPort(ifaceName);
+			if (null == port)
+			{ return false; }
+			deliver(port, frame);
+			return true;
+		}
+
+		/**
+		 * Queue a frame for the device, and make sure its loop will run it.
+		 * @return false if the inbox is full
+		 */
+		boolean offer(byte[] frame, Iface inIface)
+		{
+			if (this.queued.incrementAndGet() > inboxCapacity)
+			{
+				this.queued.decrementAndGet();
+				return false;
+			}
+			inFlight.incrementAndGet();
+			this.inbox.offer(new Delivery(frame, inIface));
+			if (this.scheduled.compareAndSet(false, true))
+			{ this.loop.schedule(this); }
+			return true;
+		}
+
+		/**
+		 * Hand the device some of the frames in its inbox. Called only by the
+		 * device's loop.
+		 */
+		void run()
+		{
+			Delivery delivery;
+			int count = 0;
+			while (count < FRAMES_PER_TURN
+					&& (delivery = this.inbox.poll()) != null)
+			{
+				this.queued.decrementAndGet();
+				try
+				{
+					this.device.receiveFrame(ByteBuffer.wrap(delivery.frame),
+							delivery.inIface);
+				}
+				catch (RuntimeException e)
+				{ e.printStackTrace(); }
+				inFlight.decrementAndGet();
+				count++;
+			}
+
+			// Let the device be scheduled again, and reschedule it if frames
+			// arrived after its inbox looked empty
+			this.scheduled.set(false);
+			if (!this.inbox.isEmpty() && this.scheduled.compareAndSet(false, true))
+			{ this.loop.schedule(this); }
+		}
+	}
+
+	/**
+	 * A thread running the devices that have frames in their inbox.
+	 */
+	private static class DeliveryLoop extends Thread
+	{
+		final ConcurrentLinkedQueue<Attachment> ready;
+		volatile Thread waiter;
+
+		DeliveryLoop(int index)
+		{
+			super("delivery-" + index);
+			this.setDaemon(true);
+			this.ready = new ConcurrentLinkedQueue<Attachment>();
+			this.waiter = null;
+		}
+
+		void schedule(Attachment attachment)
+		{
+			this.ready.offer(attachment);
+			Thread waiter = this.waiter;
+			if (waiter != null)
+			{ LockSupport.unpark(waiter); }
+		}
+
+		public void run()
+		{
+			while (!this.isInterrupted())
+			{
+				Attachment attachment = this.ready.poll();
+				if (attachment != null)
+				{
+					attachment.run();
+					continue;
+				}
+
+				// Publish that we are waiting before checking once more, so a
+				// device scheduled in between is not missed
+				this.waiter = this;
+				if (this.ready.isEmpty())
+				{ LockSupport.park(this); }
+				this.waiter = null;
+			}
+		}
+	}
+
+	/** Devices, by name of their node */
+	private final Map<String,Attachment> devices;
+
+	/** Threads running the devices */
+	private final DeliveryLoop[] loops;
+
+	/** Number of frames an inbox holds */
+	private final int inboxCapacity;
+
+	/** Number of frames queued for or being handled by a device */
+	private final AtomicInteger inFlight;
+
+	/**
+	 * Create a switch or router for every switch and router of a topology,
+	 * with interfaces configured as the VNS server would, and link them.
+	 * Call {@link #start} to start them.
+	 * @param topo the topology
+	 * @param loops number of delivery loops
+	 * @param inboxCapacity number of frames each device's inbox holds
+	 */
+	public TopologyRunner(Topology topo, int loops, int inboxCapacity)
+	{
+		super(topo);
+		if (loops < 1 || inboxCapacity < 1)
+		{ throw new IllegalArgumentException("Invalid runner parameters"); }
+		this.inboxCapacity = inboxCapacity;
+		this.inFlight = new AtomicInteger();
+		this.loops = new DeliveryLoop[loops];
+		for (int i = 0; i < loops; i++)
+		{ this.loops[i] = new DeliveryLoop(i); }
+
+		this.devices = new LinkedHashMap<String,Attachment>();
+		int next = 0;
+		for (Topology.Node node : topo.getNodes())
+		{
+			Device device;
+			if (Topology.Type.SWITCH == node.getType())
+			{ device = new Switch(node.getName(), null); }
+			else if (Topology.Type.ROUTER == node.getType())
+			{ device = new Router(node.getName(), null); }
+			else
+			{ continue; }
+
+			for (Topology.Port port : node.getPorts())
+			{
+				Iface iface = device.addInterface(port.getName());
+				if (Topology.Type.ROUTER == node.getType())
+				{
+					iface.setMacAddress(port.getMacAddress());
+					iface.setIpAddress(port.getIpAddress());
+					iface.setSubnetMask(port.getSubnetMask());
+				}
+			}
+			Attachment attachment = new Attachment(device, node,
+					this.loops[next]);
+			next = (next + 1) % loops;
+			device.setTransport(attachment);
+			this.devices.put(node.getName(), attachment);
+		}
+	}
+
+	/**
+	 * Start the delivery loops, and start routing on every router: each
+	 * router routes to its own subnets and learns the rest with RIP. Every
+	 * router has routes to its own subnets before any sends a RIP request,
+	 * so the first responses already carry them.
+	 */
+	public void start()
+	{
+		for (DeliveryLoop loop : this.loops)
+		{ loop.start(); }
+		for (Attachment attachment : this.devices.values())
+		{
+			if (attachment.device instanceof Router)
+			{ ((Router)attachment.device).loadIfaceRoutes(); }
+		}
+		for (Attachment attachment : this.devices.values())
+		{
+			if (attachment.device instanceof Router)
+			{ ((Router)attachment.device).startRip(); }
+		}
+	}
+
+	/**
+	 * Block until every router has a route to every subnet in the topology.
+	 * With a {@link SimulatedClock}, the clock is advanced from one timer to
+	 * the next, letting the frames each timer sends be handled before the
+	 * next one runs, instead of waiting.
+	 * @param timeout longest time (in milliseconds, by the clock) to wait
+	 * @return true if routing converged in time
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean awaitConvergence(long timeout) throws InterruptedException
+	{
+		List<Integer> subnets = new ArrayList<Integer>();
+		for (Topology.Node node : this.topo.getNodes())
+		{
+			for (Topology.Port port : node.getPorts())
+			{
+				if (port.getIpAddress() != 0)
+				{ subnets.add(port.getIpAddress()); }
+			}
+		}
+
+		Clock clock = Clock.get();
+		long deadline = clock.currentTimeMillis() + timeout;
+		for (Attachment attachment : this.devices.values())
+		{
+			if (!(attachment.device instanceof Router))
+			{ continue; }
+			Router router = (Router)attachment.device;
+			for (int subnet : subnets)
+			{
+				while (null == router.getRouteTable().lookup(subnet))
+				{
+					long now = clock.currentTimeMillis();
+					if (now >= deadline)
+					{ return false; }
+					if (clock instanceof SimulatedClock)
+					{
+						// Let the frames in flight be handled before moving
+						// time on
+						if (this.inFlight.get() > 0)
+						{
+							this.awaitIdle();
+							continue;
+						}
+						SimulatedClock simClock = (SimulatedClock)clock;
+						long next = simClock.getNextDue();
+						simClock.advance((next < 0) ? CONVERGENCE_POLL
+								: Math.min(Math.max(next - now, 0), deadline - now));
+						this.awaitIdle();
+					}
+					else
+					{ Thread.sleep(CONVERGENCE_POLL); }
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until every frame in flight has been handled by its device.
+	 */
+	public void awaitIdle()
+	{
+		while (this.inFlight.get() > 0)
+		{ LockSupport.parkNanos(IDLE_POLL); }
+	}
+
+	/**
+	 * Stop every device and the delivery loops.
+	 */
+	public void shutdown()
+	{
+		for (DeliveryLoop loop : this.loops)
+		{ loop.interrupt(); }
+		for (Attachment attachment : this.devices.values())
+		{ attachment.device.destroy(); }
+	}
+
+	/**
+	 * Carry a frame sent out a port to the node at the other end of its link:
+	 * to a simulated host, or onto the inbox of a device. The frame is dropped
+	 * if the port is not linked or the device's inbox is full.
+	 */
+	public void deliver(Topology.Port from, ByteBuffer frame)
+	{
+		Topology.Port to = from.getPeer();
+		if (null == to)
+		{
+			this.dropped.incrementAndGet();
+			return;
+		}
+		if (Topology.Type.HOST == to.getNode().getType())
+		{
+			this.deliverToHost(to, frame);
+			return;
+		}
+		Attachment attachment = this.devices.get(to.getNode().getName());
+		byte[] copy = new byte[frame.remaining()];
+		frame.duplicate().get(copy);
+		if (attachment.offer(copy, attachment.device.getInterface(to.getName())))
+		{ this.relayed.incrementAndGet(); }
+		else
+		{ this.dropped.incrementAndGet(); }
+	}
+
+	/**
+	 * @param name name of a switch or router in the topology
+	 * @return the device; null if there is no device with the name
+	 */
+	public Device getDevice(String name)
+	{
+		Attachment attachment = this.devices.get(name);
+		return (null == attachment) ? null : attachment.device;
+	}
+
+	public static void main(String[] args)
+	{
+		String topoFile = null;
+		int treeRouters = 0;
+		int treeFanout = 2;
+		int loops = Runtime.getRuntime().availableProcessors();
+		int inboxCapacity = DEFAULT_INBOX_CAPACITY;
+		int convergenceTimeout = 120;
+		int duration = 10;
+		boolean simulated = false;
+		int aging = 0;
+		List<String> traffic = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-n"))
+			{
+				String[] tree = args[++i].split(":");
+				treeRouters = Integer.parseInt(tree[0]);
+				if (tree.length > 1)
+				{ treeFanout = Integer.parseInt(tree[1]); }
+			}
+			else if (arg.equals("-e"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ inboxCapacity = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ convergenceTimeout = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-g"))
+			{ traffic.add(args[++i]); }
+			else if (arg.equals("-d"))
+			{ duration = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-s"))
+			{ simulated = true; }
+			else if (arg.equals("-a"))
+			{ aging = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				if (!Log.configure(args[++i]))
+				{
+					usage();
+					return;
+				}
+			}
+		}
+
+		if ((null == topoFile) == (0 == treeRouters))
+		{
+			usage();
+			return;
+		}
+
+		// The clock must be set before devices are created
+		SimulatedClock simClock = null;
+		if (simulated)
+		{
+			simClock = new SimulatedClock(SIMULATED_START);
+			Clock.set(simClock);
+		}
+
+		final TopologyRunner runner;
+		List<TrafficGenerator> generators = new ArrayList<TrafficGenerator>();
+		try
+		{
+			Topology topo = (topoFile != null) ? Topology.load(topoFile)
+					: Topology.tree(treeRouters, treeFanout);
+			runner = new TopologyRunner(topo, loops, inboxCapacity);
+			for (String spec : traffic)
+			{ generators.add(runner.parseTraffic(spec)); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid argument: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.out.println(String.format(
+				"Running %d devices and %d hosts on %d delivery loops",
+				runner.devices.size(), runner.hosts.size(), loops));
+
+		try
+		{
+			if (simClock != null)
+			{
+				// Let the frames each timer sends be handled before the next
+				simClock.setSettler(new Runnable() {
+					public void run()
+					{ runner.awaitIdle(); }
+				});
+			}
+
+			Clock clock = Clock.get();
+			long start = System.currentTimeMillis();
+			long clockStart = clock.currentTimeMillis();
+			runner.start();
+			if (runner.awaitConvergence(convergenceTimeout * 1000L))
+			{
+				long elapsed = System.currentTimeMillis() - start;
+				if (simClock != null)
+				{
+					System.out.println(String.format(
+							"Routing converged in %d ms simulated (%d ms)",
+							clock.currentTimeMillis() - clockStart, elapsed));
+				}
+				else
+				{
+					System.out.println(String.format(
+							"Routing converged in %d ms", elapsed));
+				}
+			}
+			else
+			{
+				System.out.println(String.format(
+						"Routing did not converge in %d s", convergenceTimeout));
+			}
+
+			if (simClock != null && aging > 0)
+			{
+				start = System.currentTimeMillis();
+				simClock.advance(aging * 1000L);
+				runner.awaitIdle();
+				System.out.println(String.format(
+						"Ran %d s simulated in %d ms, routes %s", aging,
+						System.currentTimeMillis() - start,
+						runner.awaitConvergence(0) ? "intact" : "missing"));
+			}
+
+			if (!generators.isEmpty())
+			{
+				if (simClock != null)
+				{
+					// Keep timers running while traffic flows
+					simClock.setSettler(null);
+					final SimulatedClock ticked = simClock;
+					Thread ticker = new Thread("ticker") {
+						public void run()
+						{
+							while (!this.isInterrupted())
+							{
+								LockSupport.parkNanos(CONVERGENCE_POLL * 1000000);
+								ticked.advance(CONVERGENCE_POLL);
+							}
+						}
+					};
+					ticker.setDaemon(true);
+					ticker.start();
+				}
+				for (TrafficGenerator generator : generators)
+				{ generator.start(); }
+				runner.report(generators, duration);
+			}
+		}
+		catch (InterruptedException e)
+		{ }
+		runner.shutdown();
+		Log.flush(1000);
+		System.exit(0);
+	}
+
+	static void usage()
+	{
+		System.out.println("Topology Runner");
+		System.out.println("TopologyRunner (-t topology_file | -n routers[:fanout])");
+		System.out.println("     [-e delivery_loops] [-q inbox_capacity] [-h]");
+		System.out.println("     [-c convergence_timeout_seconds] [-d duration_seconds]");
+		System.out.println("     [-s [-a simulated_seconds]]");
+		System.out.println("     [-g src:dst:pps[:frame_size[:flows]]]...");
+		System.out.println("     [-L log_level[,category=log_level[:sample_rate]]...]");
+		System.out.println("  -n generates a tree of routers, each with one host");
+		System.out.println("  -s runs device timers on a simulated clock, which skips ahead");
+		System.out.println("     to the next timer instead of waiting; -a then runs on for");
+		System.out.println("     the given simulated time after routing converges");
+	}
+}
@@ -0,0 +1,164 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Sends probe packets from one simulated host to another at a fixed rate.
+ * Each probe is a UDP packet to {@link SimHost#PROBE_PORT} carrying a
+ * sequence number and the time it was sent, so the receiving host can
+ * measure its latency. The frame is built once; each probe only patches in
+ * its sequence number, timestamp, and (when several flows are requested)
+ * its UDP source port.
+ */
+public class TrafficGenerator extends Thread
+{
+	/** Shortest frame that can hold the probe fields */
+	public static final int MIN_FRAME_SIZE =
+			SimHost.PROBE_OFFSET + SimHost.PROBE_LENGTH;
+
+	/** First UDP source port used by probes */
+	private static final int BASE_SOURCE_PORT = 50000;
+
+	/** Offset in a probe frame of the UDP source port */
+	private static final int SOURCE_PORT_OFFSET = 14 + 20;
+
+	/** How long to wait between bursts of probes, in nanoseconds */
+	private static final long PACING_INTERVAL = 100000;
+
+	/** Host from which probes are sent */
+	private final SimHost source;
+
+	/** Probes per second */
+	private final long rate;
+
+	/** Number of distinct UDP source ports probes cycle through */
+	private final int flows;
+
+	/** Probe frame sent, with the probe fields to be patched in */
+	private final byte[] template;
+
+	/** Number of probes sent */
+	private volatile long sent;
+
+	/**
+	 * Create a generator; call {@link #start} to begin sending.
+	 * @param topo topology containing both hosts
+	 * @param source host from which probes are sent
+	 * @param destination host to which probes are sent
+	 * @param rate probes per second
+	 * @param frameSize length of each probe frame, in bytes
+	 * @param flows number of distinct UDP source ports probes cycle through
+	 */
+	public TrafficGenerator(Topology topo, SimHost source, SimHost destination,
+			long rate, int frameSize, int flows)
+	{
+		super("traffic-" + source + "-" + destination);
+		this.setDaemon(true);
+		if (rate < 1 || frameSize < MIN_FRAME_SIZE || flows < 1)
+		{ throw new IllegalArgumentException("Invalid traffic parameters"); }
+		this.source = source;
+		this.rate = rate;
+		this.flows = flows;
+		this.template = buildTemplate(topo, source.getPort(),
+				destination.getPort(), frameSize);
+		this.sent = 0;
+	}
+
+	/**
+	 * Build the probe frame. It is addressed at the Ethernet level to the
+	 * destination if it is on the source's subnet, and otherwise to the
+	 * source's gateway, as the source would after resolving it with ARP.
+	 */
+	private static byte[] buildTemplate(Topology topo, Topology.Port src,
+			Topology.Port dst, int frameSize)
+	{
+		MACAddress nextHop = dst.getMacAddress();
+		int mask = src.getSubnetMask();
+		if ((src.getIpAddress() & mask) != (dst.getIpAddress() & mask))
+		{
+			Topology.Port gateway = topo.findPort(src.getNode().getGateway());
+			if (null == gateway)
+			{
+				throw new IllegalArgumentException("No gateway for "
+						+ src.getNode());
+			}
+			nextHop = gateway.getMacAddress();
+		}
+
+		UDP udp = new UDP();
+		udp.setSourcePort((short)BASE_SOURCE_PORT);
+		udp.setDestinationPort((short)SimHost.PROBE_PORT);
+		udp.setPayload(new Data(new byte[frameSize - SimHost.PROBE_OFFSET]));
+		IPv4 ip = new IPv4();
+		ip.setTtl(SimHost.PROBE_TTL);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(src.getIpAddress());
+		ip.setDestinationAddress(dst.getIpAddress());
+		ip.setPayload(udp);
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(src.getMacAddress().toBytes());
+		ether.setDestinationMACAddress(nextHop.toBytes());
+		ether.setPayload(ip);
+		byte[] frame = ether.serialize();
+
+		// The payload changes with every probe, so leave the UDP checksum
+		// out, which IPv4 allows
+		frame[SOURCE_PORT_OFFSET + 6] = 0;
+		frame[SOURCE_PORT_OFFSET + 7] = 0;
+		return frame;
+	}
+
+	public void run()
+	{
+		long start = System.nanoTime();
+		long seq = 0;
+		while (!this.isInterrupted())
+		{
+			long due = (System.nanoTime() - start) / 1000 * this.rate / 1000000;
+			while (seq < due)
+			{
+				this.source.send(this.nextProbe(seq));
+				seq++;
+			}
+			this.sent = seq;
+			LockSupport.parkNanos(PACING_INTERVAL);
+		}
+	}
+
+	/**
+	 * @param seq sequence number of the probe
+	 * @return buffer holding the probe frame
+	 */
+	private ByteBuffer nextProbe(long seq)
+	{
+		ByteBuffer frame = ByteBuffer.wrap(this.template.clone());
+		if (this.flows > 1)
+		{
+			frame.putShort(SOURCE_PORT_OFFSET,
+					(short)(BASE_SOURCE_PORT + seq % this.flows));
+		}
+		frame.putLong(SimHost.PROBE_OFFSET, seq);
+		frame.putLong(SimHost.PROBE_OFFSET + 8, System.nanoTime());
+		return frame;
+	}
+
+	/**
+	 * @return number of probes sent
+	 */
+	public long getSent()
+	{ return this.sent; }
+
+	/**
+	 * @return host from which probes are sent
+	 */
+	public SimHost getSource()
+	{ return this.source; }
+}
@@ -0,0 +1,460 @@
+package edu.wisc.cs.sdn.vnet.sim;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.CommandHwEntry;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+import edu.wisc.cs.sdn.vnet.vns.EgressWriter;
+
+/**
+ * A stand-in for the VNS server, so routers and switches can be load tested
+ * without Mininet or POX. Devices connect to it over TCP exactly as they
+ * would to the POX module: each opens a session for a node of a topology,
+ * is told about the node's interfaces, and then exchanges frames. The
+ * server relays each frame sent out an interface to the node at the other
+ * end of its link. Hosts are simulated in the server itself (see
+ * {@link SimHost}), and can be made to send probe traffic at a fixed rate
+ * (see {@link TrafficGenerator}) so the throughput and latency of the
+ * devices between them can be measured.
+ */
+public class VNSServer extends SimNetwork
+{
+	public static final int DEFAULT_PORT = 8888;
+
+	/** Length of the message in a close command */
+	private static final int CLOSE_MESSAGE_SIZE = 256;
+
+	/** Longest command accepted from a device */
+	private static final int MAX_COMMAND_LENGTH = 65536;
+
+	/**
+	 * The connection of one device.
+	 */
+	private class Session extends Thread
+	{
+		final SocketChannel channel;
+		final EgressWriter egress;
+		Topology.Node node;
+
+		Session(SocketChannel channel)
+		{
+			super("vns-session");
+			this.setDaemon(true);
+			this.channel = channel;
+			this.egress = new EgressWriter(channel, "vns-session-egress",
+					EgressWriter.DEFAULT_CAPACITY);
+			this.node = null;
+		}
+
+		public void run()
+		{
+			ByteBuffer buf = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+			try
+			{
+				while (this.channel.read(buf) >= 0)
+				{
+					buf.flip();
+					while (buf.remaining() >= 8)
+					{
+						int len = buf.getInt(buf.position());
+						if (len < 8 || len > MAX_COMMAND_LENGTH)
+						{
+							System.err.println("Invalid command length " + len);
+							return;
+						}
+						if (buf.remaining() < len)
+						{ break; }
+						int next = buf.position() + len;
+						ByteBuffer command = buf.duplicate();
+						command.limit(next);
+						if (!this.process(command))
+						{ return; }
+						buf.position(next);
+					}
+					buf.compact();
+				}
+			}
+			catch (IOException e)
+			{ }
+			finally
+			{ this.close(); }
+		}
+
+		/**
+		 * Handle one command from the device.
+		 * @param command buffer holding the command between its position and
+		 *        limit
+		 * @return false if the session should be closed
+		 */
+		private boolean process(ByteBuffer command)
+		{
+			int type = command.getInt(command.position() + 4);
+			if (null == this.node)
+			{
+				if (type != Command.VNS_OPEN
+						|| command.remaining() < 8 + Command.ID_SIZE)
+				{ return false; }
+				byte[] id = new byte[Command.ID_SIZE];
+				command.position(command.position() + 8);
+				command.get(id);
+				return this.open(trim(id));
+			}
+
+			if (Command.VNS_PACKET == type
+					&& command.remaining() >= CommandPacket.HEADER_LENGTH)
+			{
+				byte[] name = new byte[CommandPacket.HEADER_LENGTH - 8];
+				command.position(command.position() + 8);
+				command.get(name);
+				Topology.Port port = this.node.getPort(trim(name));
+				if (null == port)
+				{ dropped.incrementAndGet(); }
+				else
+				{ deliver(port, command); }
+			}
+			else if (Command.VNS_CLOSE == type)
+			{ return false; }
+			return true;
+		}
+
+		/**
+		 * Attach the session to a node and describe the node's interfaces.
+		 * @param name name of the node
+		 * @return false if the session cannot be attached to the node
+		 */
+		private boolean open(String name)
+		{
+			Topology.Node node = topo.getNode(name);
+			if (null == node || Topology.Type.HOST == node.getType())
+			{
+				this.sendClose("Unknown virtual host " + name);
+				return false;
+			}
+			if (sessions.putIfAbsent(name, this) != null)
+			{
+				this.sendClose("Virtual host " + name + " is already in use");
+				return false;
+			}
+			this.node = node;
+			this.setName("vns-session-" + name);
+			this.egress.sendControl(hwInfo(node));
+			synchronized (sessions)
+			{ sessions.notifyAll(); }
+			System.out.println("Session opened for " + name);
+			return true;
+		}
+
+		/**
+		 * Send a frame to the device out one of its interfaces.
+		 */
+		void sendPacket(String iface, ByteBuffer frame)
+		{
+			int len = CommandPacket.HEADER_LENGTH + frame.remaining();
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			buf.putInt(len);
+			buf.putInt(Command.VNS_PACKET);
+			putPadded(buf, iface.getBytes(), CommandPacket.HEADER_LENGTH - 8);
+			buf.put(frame.duplicate());
+			buf.flip();
+			if (!this.egress.send(buf))
+			{ dropped.incrementAndGet(); }
+			else
+			{ relayed.incrementAndGet(); }
+		}
+
+		private void sendClose(String message)
+		{
+			ByteBuffer buf = ByteBuffer.allocate(8 + CLOSE_MESSAGE_SIZE);
+			buf.putInt(buf.capacity());
+			buf.putInt(Command.VNS_CLOSE);
+			putPadded(buf, message.getBytes(), CLOSE_MESSAGE_SIZE);
+			buf.flip();
+			this.egress.sendControl(buf);
+		}
+
+		void close()
+		{
+			if (this.node != null && sessions.remove(this.node.getName(), this))
+			{
+				System.out.println("Session closed for " + this.node);
+			}
+			this.egress.close(1000);
+			try
+			{ this.channel.close(); }
+			catch (IOException e)
+			{ }
+		}
+	}
+
+	/** Sessions that have been opened, by name of their node */
+	private final ConcurrentHashMap<String,Session> sessions;
+
+	/** Socket on which devices connect */
+	private ServerSocketChannel listener;
+
+	/**
+	 * Create a server for a topology, with a simulated host for each of its
+	 * hosts.
+	 * @param topo the topology
+	 */
+	public VNSServer(Topology topo)
+	{
+		super(topo);
+		this.sessions = new ConcurrentHashMap<String,Session>();
+	}
+
+	/**
+	 * Start accepting connections from devices.
+	 * @param port TCP port on which to listen
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void start(int port) throws IOException
+	{
+		this.listener = ServerSocketChannel.open();
+		this.listener.socket().setReuseAddress(true);
+		this.listener.socket().bind(new InetSocketAddress(port));
+		Thread acceptor = new Thread("vns-accept")
+		{
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						SocketChannel channel = listener.accept();
+						channel.socket().setTcpNoDelay(true);
+						new Session(channel).start();
+					}
+				}
+				catch (IOException e)
+				{ }
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Block until a device has opened a session for every switch and router
+	 * in the topology.
+	 * @param timeout longest time to wait, in milliseconds
+	 * @return true if every device connected in time
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public boolean awaitDevices(long timeout) throws InterruptedException
+	{
+		int expected = 0;
+		for (Topology.Node node : this.topo.getNodes())
+		{
+			if (node.getType() != Topology.Type.HOST)
+			{ expected++; }
+		}
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (this.sessions)
+		{
+			while (this.sessions.size() < expected)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+				{ return false; }
+				this.sessions.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stop accepting connections and close every session.
+	 */
+	public void shutdown()
+	{
+		try
+		{ this.listener.close(); }
+		catch (IOException e)
+		{ }
+		for (Session session : new ArrayList<Session>(this.sessions.values()))
+		{
+			session.sendClose("Server shutting down");
+			session.close();
+		}
+	}
+
+	/**
+	 * Carry a frame sent out a port to the node at the other end of its link:
+	 * to a simulated host, or to the device whose session is attached to the
+	 * node. The frame is dropped if the port is not linked or the node has no
+	 * session.
+	 */
+	public void deliver(Topology.Port from, ByteBuffer frame)
+	{
+		Topology.Port to = from.getPeer();
+		if (null == to)
+		{
+			this.dropped.incrementAndGet();
+			return;
+		}
+		Topology.Node node = to.getNode();
+		if (Topology.Type.HOST == node.getType())
+		{
+			this.deliverToHost(to, frame);
+			return;
+		}
+		Session session = this.sessions.get(node.getName());
+		if (null == session)
+		{ this.dropped.incrementAndGet(); }
+		else
+		{ session.sendPacket(to.getName(), frame); }
+	}
+
+	/**
+	 * Build the command describing a node's interfaces. As with the POX
+	 * module, switch interfaces are only named, while router interfaces also
+	 * have their MAC address, IP address, and subnet mask.
+	 */
+	private static ByteBuffer hwInfo(Topology.Node node)
+	{
+		int entrySize = 4 + Command.ID_SIZE;
+		int entries = (Topology.Type.ROUTER == node.getType() ? 4 : 1);
+		int len = 8 + node.getPorts().size() * entries * entrySize;
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		buf.putInt(len);
+		buf.putInt(Command.VNS_HW_INFO);
+		for (Topology.Port port : node.getPorts())
+		{
+			buf.putInt(CommandHwEntry.HW_INTERFACE);
+			putPadded(buf, port.getName().getBytes(), Command.ID_SIZE);
+			if (entries > 1)
+			{
+				buf.putInt(CommandHwEntry.HW_ETHER);
+				putPadded(buf, port.getMacAddress().toBytes(), Command.ID_SIZE);
+				buf.putInt(CommandHwEntry.HW_ETH_IP);
+				putPadded(buf, ByteBuffer.allocate(4)
+						.putInt(port.getIpAddress()).array(), Command.ID_SIZE);
+				buf.putInt(CommandHwEntry.HW_MASK);
+				putPadded(buf, ByteBuffer.allocate(4)
+						.putInt(port.getSubnetMask()).array(), Command.ID_SIZE);
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Put bytes into a fixed-size field, truncated or padded with zeros.
+	 */
+	private static void putPadded(ByteBuffer buf, byte[] value, int size)
+	{
+		int len = Math.min(value.length, size);
+		buf.put(value, 0, len);
+		for (int i = len; i < size; i++)
+		{ buf.put((byte)0); }
+	}
+
+	/**
+	 * @return the bytes up to the first zero, as a string
+	 */
+	private static String trim(byte[] value)
+	{
+		int len = 0;
+		while (len < value.length && value[len] != 0)
+		{ len++; }
+		return new String(value, 0, len);
+	}
+
+	public static void main(String[] args)
+	{
+		String topoFile = null;
+		int port = DEFAULT_PORT;
+		int duration = 0;
+		int warmup = 0;
+		List<String> traffic = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-p"))
+			{ port = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-g"))
+			{ traffic.add(args[++i]); }
+			else if (arg.equals("-d"))
+			{ duration = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmup = Integer.parseInt(args[++i]); }
+		}
+
+		if (null == topoFile)
+		{
+			usage();
+			return;
+		}
+
+		VNSServer server;
+		List<TrafficGenerator> generators = new ArrayList<TrafficGenerator>();
+		try
+		{
+			Topology topo = Topology.load(topoFile);
+			server = new VNSServer(topo);
+			for (String spec : traffic)
+			{ generators.add(server.parseTraffic(spec)); }
+			server.start(port);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid traffic: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.out.println(String.format("Listening on port %d for %s", port,
+				topoFile));
+
+		try
+		{
+			while (!server.awaitDevices(10000))
+			{ System.out.println("Waiting for devices to connect"); }
+
+			// Give routing a chance to converge before sending traffic
+			if (warmup > 0)
+			{
+				System.out.println(String.format(
+						"Waiting %d seconds before sending traffic", warmup));
+				Thread.sleep(warmup * 1000L);
+			}
+			for (TrafficGenerator generator : generators)
+			{ generator.start(); }
+			server.report(generators, duration);
+		}
+		catch (InterruptedException e)
+		{ }
+		server.shutdown();
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Server");
+		System.out.println("VNSServer -t topology_file [-p port] [-h]");
+		System.out.println("     [-w warmup_seconds] [-d duration_seconds]");
+		System.out.println("     [-g src:dst:pps[:frame_size[:flows]]]...");
+		System.out.println(String.format("  default port=%d", DEFAULT_PORT));
+	}
+}
@@ -1,8 +1,9 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 import net.floodlightcontroller.packet.MACAddress;
@@ -11,16 +12,43 @@ import net.floodlightcontroller.packet.MACAddress;
  * A MAC learning table.
  * @author Aaron Gember-Jacobson
  */
-public class MACTable implements Runnable
+public class MACTable
 {
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
 	
 	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
+	private ConcurrentMap<MACAddress,MACTableEntry> entries;
 	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+	/** Clock on which entries age */
+	private Clock clock;
+	
+	/** Set once entries should no longer time out */
+	private volatile boolean shutdown;
+
+	/**
+	 * Times out one entry. Updating an entry only updates its time, so when
+	 * the timer fires for an entry that was updated, it waits out the rest
+	 * of the entry's time instead of removing it.
+	 */
+	private class Aging implements Runnable
+	{
+		private final MACTableEntry entry;
+		
+		Aging(MACTableEntry entry)
+		{ this.entry = entry; }
+		
+		public void run()
+		{
+			if (shutdown)
+			{ return; }
+			long age = clock.currentTimeMillis() - this.entry.getTimeUpdated();
+			if (age < TIMEOUT)
+			{ clock.schedule(this, TIMEOUT - age); }
+			else
+			{ entries.remove(this.entry.getMACAddress(), this.entry); }
+		}
+	}
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
@@ -29,49 +57,35 @@ public class MACTable implements Runnable
 	public MACTable()
 	{
 		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
-	}
-	
-	public void insert(MACAddress macAddress, Iface iface)
-	{
-		MACTableEntry entry = this.lookup(macAddress);
-		if(entry != null)
-		{ entry.update(iface); }
-		else
-		{ 
-			entry = new MACTableEntry(macAddress, iface);
-			this.entries.put(macAddress, entry); 
-		}
-	}
-	
-	public MACTableEntry lookup(MACAddress macAddress) 
-	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
+		this.clock = Clock.get();
+		this.shutdown = false;
 	}
 	
 	/**
-	 * Every second: timeout MAC table entries.
+	 * Stop timing out entries.
 	 */
-	public void run()
+	public void shutdown()
+	{ this.shutdown = true; }
+	
+	public void insert(MACAddress macAddress, Iface iface)
 	{
-		while (true)
+		MACTableEntry entry = this.entries.get(macAddress);
+		if (entry != null)
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
-			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
-			}
+			entry.update(iface);
+			return;
 		}
+		
+		// Only the thread whose entry goes in starts its aging, so an entry 
+		// learned by two threads at once is timed out just once
+		entry = new MACTableEntry(macAddress, iface);
+		MACTableEntry existing = this.entries.putIfAbsent(macAddress, entry);
+		if (existing != null)
+		{ existing.update(iface); }
+		else
+		{ this.clock.schedule(new Aging(entry), TIMEOUT); }
 	}
+	
+	public MACTableEntry lookup(MACAddress macAddress) 
+	{ return this.entries.get(macAddress); }
 }
@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import edu.wisc.cs.sdn.vnet.Clock;
 import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -12,11 +13,13 @@ public class MACTableEntry
 	/** MAC address */
 	private MACAddress macAddress;
 
-	/** Switch interface out which packets should be sent to reach the MAC */
-	private Iface iface;
+	/** Switch interface out which packets should be sent to reach the MAC;
+	 *  volatile since workers update it while others forward with it */
+	private volatile Iface iface;
 	
-	/** Time (in milliseconds since the epoch) the entry was updated */
-	private long timeUpdated;
+	/** Time (in milliseconds since the epoch) the entry was updated;
+	 *  volatile since the aging timer reads it on the clock's thread */
+	private volatile long timeUpdated;
 	
 	/**
 	 * Create a new MAC table entry.
@@ -28,13 +31,13 @@ public class MACTableEntry
 	{
 		this.macAddress = macAddress;
 		this.iface = iface;
-		this.timeUpdated = System.currentTimeMillis();
+		this.timeUpdated = Clock.get().currentTimeMillis();
 	}
 	
 	public void update(Iface iface)
 	{
 		this.iface = iface;
-		this.timeUpdated = System.currentTimeMillis();
+		this.timeUpdated = Clock.get().currentTimeMillis();
 	}
 	
 	public MACAddress getMACAddress() 
@@ -4,12 +4,16 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
  */
 public class Switch extends Device
 {
+	/** Log for packets handled by the switch */
+	private static final Log.Category log = Log.getCategory("switch");
+	
 	private MACTable macTable;
 	
 	/**
@@ -21,6 +25,15 @@ public class Switch extends Device
 		super(host,logfile);
 		this.macTable = new MACTable();
 	}
+	
+	/**
+	 * Stop aging the MAC table and close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		this.macTable.shutdown();
+		super.destroy();
+	}
 
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
@@ -29,8 +42,7 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
+		log.debug("*** -> Received packet: %s", etherPacket);
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -47,7 +59,7 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					log.trace("Send packet out interface %s", iface);
 				}
 			}
 		}
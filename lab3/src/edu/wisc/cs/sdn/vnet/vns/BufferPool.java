@@ -0,0 +1,120 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers of one size, so connections can reuse buffers
+ * that live outside the heap instead of allocating one per read. Buffers of
+ * other sizes may be acquired, but are allocated for the caller and not
+ * kept when released.
+ */
+public class BufferPool
+{
+	/** Default size of a pooled buffer, in bytes */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/** Default largest number of free buffers kept */
+	public static final int DEFAULT_MAX_FREE = 64;
+
+	/** Pool shared by connections that are not given their own */
+	private static final BufferPool shared =
+			new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FREE);
+
+	/** Size of a pooled buffer, in bytes */
+	private final int bufferSize;
+
+	/** Largest number of free buffers kept */
+	private final int maxFree;
+
+	/** Buffers that are not in use */
+	private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+	/** Number of buffers in the free list */
+	private final AtomicInteger freeCount;
+
+	/** Number of buffers allocated */
+	private final AtomicLong allocated;
+
+	/**
+	 * Create an empty pool.
+	 * @param bufferSize size of a pooled buffer, in bytes
+	 * @param maxFree largest number of free buffers kept
+	 */
+	public BufferPool(int bufferSize, int maxFree)
+	{
+		if (bufferSize < 1 || maxFree < 0)
+		{ throw new IllegalArgumentException("Invalid size or free count"); }
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.freeCount = new AtomicInteger();
+		this.allocated = new AtomicLong();
+	}
+
+	/**
+	 * @return pool shared by connections that are not given their own
+	 */
+	public static BufferPool getShared()
+	{ return shared; }
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if none is free.
+	 * @param minSize smallest size the buffer must have, in bytes; a buffer
+	 *        larger than the pool's size is allocated and not pooled
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(int minSize)
+	{
+		if (minSize > this.bufferSize)
+		{
+			this.allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(minSize);
+		}
+		ByteBuffer buf = this.free.poll();
+		if (null == buf)
+		{
+			this.allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+		this.freeCount.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used afterwards.
+	 * @param buf buffer taken from {@link #acquire}
+	 */
+	public void release(ByteBuffer buf)
+	{
+		if (buf.capacity() != this.bufferSize || !buf.isDirect())
+		{ return; }
+		if (this.freeCount.incrementAndGet() > this.maxFree)
+		{
+			this.freeCount.decrementAndGet();
+			return;
+		}
+		this.free.offer(buf);
+	}
+
+	/**
+	 * @return size of a pooled buffer, in bytes
+	 */
+	public int getBufferSize()
+	{ return this.bufferSize; }
+
+	/**
+	 * @return number of buffers in the free list
+	 */
+	public int getFreeCount()
+	{ return this.freeCount.get(); }
+
+	/**
+	 * @return number of buffers allocated
+	 */
+	public long getAllocated()
+	{ return this.allocated.get(); }
+}
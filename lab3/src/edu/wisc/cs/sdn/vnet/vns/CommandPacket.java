@@ -6,6 +6,12 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Length of the interface name field */
+	public static final int IFACE_NAME_LENGTH = 16;
+	
+	/** Length of everything that precedes the Ethernet frame in a command */
+	public static final int HEADER_LENGTH = 4 + 4 + IFACE_NAME_LENGTH;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -0,0 +1,418 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.FrameLease;
+
+/**
+ * Writes commands to the VNS server from a single thread. Any number of
+ * threads queue complete commands; the writer drains the queue and sends
+ * up to a batch of commands with one gathering write, so commands are never
+ * interleaved and bursts cost one system call rather than one per command.
+ * A command may be made up of several buffers, such as a header and a frame
+ * that are sent without being copied together.
+ * <p>
+ * Only data commands are dropped when too many commands are waiting; 
+ * control commands, which the session or the routing protocols depend on,
+ * are always queued.
+ * <p>
+ * With a flush deadline of zero, the writer sends whatever has been queued
+ * as soon as it wakes up. With a positive deadline, it waits up to that long
+ * after the first command of a batch for the batch to fill.
+ */
+public class EgressWriter implements Runnable
+{
+	/** Default largest number of commands sent with one write */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	/** Default time (in microseconds) a partial batch waits to fill */
+	public static final long DEFAULT_FLUSH_DEADLINE = 0;
+
+	/** Default largest number of commands waiting to be written before data
+	 *  commands are dropped */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/** Time (in nanoseconds) to wait before retrying a write to a
+	 *  non-blocking connection whose send buffer is full */
+	private static final long WRITE_RETRY_NANOS = 50000;
+
+	/**
+	 * A command waiting to be written.
+	 */
+	private static class Command
+	{
+		final ByteBuffer[] buffers;
+		final FrameLease lease;
+
+		Command(ByteBuffer[] buffers, FrameLease lease)
+		{
+			this.buffers = buffers;
+			this.lease = lease;
+		}
+
+		/**
+		 * Give the buffer back to its owner, if it was lent.
+		 */
+		void release()
+		{
+			if (this.lease != null)
+			{ this.lease.release(); }
+		}
+	}
+
+	/** Connection to the server */
+	private final GatheringByteChannel channel;
+
+	/** Commands waiting to be written */
+	private final ConcurrentLinkedQueue<Command> queue;
+
+	/** Number of commands waiting to be written */
+	private final AtomicInteger pending;
+
+	/** Largest number of commands waiting to be written before data commands
+	 *  are dropped */
+	private final int capacity;
+
+	/** Largest number of commands sent with one write */
+	private volatile int batchSize;
+
+	/** Time (in nanoseconds) a partial batch waits to fill */
+	private volatile long flushDeadline;
+
+	/** Thread writing commands */
+	private final Thread thread;
+
+	/** True while the writer is parked waiting for commands */
+	private volatile boolean waiting;
+
+	/** True once no more commands are accepted */
+	private volatile boolean closed;
+
+	/** Counters */
+	private final AtomicLong commands;
+	private final AtomicLong writes;
+	private final AtomicLong drops;
+
+	/**
+	 * Create and start a writer.
+	 * @param channel connection to the server
+	 * @param name name of the writer thread
+	 * @param capacity largest number of commands waiting to be written
+	 *        before data commands are dropped
+	 */
+	public EgressWriter(GatheringByteChannel channel, String name, int capacity)
+	{
+		if (capacity < 1)
+		{ throw new IllegalArgumentException("Invalid capacity " + capacity); }
+		this.channel = channel;
+		this.queue = new ConcurrentLinkedQueue<Command>();
+		this.pending = new AtomicInteger();
+		this.capacity = capacity;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+		this.flushDeadline = DEFAULT_FLUSH_DEADLINE * 1000;
+		this.waiting = false;
+		this.closed = false;
+		this.commands = new AtomicLong();
+		this.writes = new AtomicLong();
+		this.drops = new AtomicLong();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @param batchSize largest number of commands sent with one write
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+		{ throw new IllegalArgumentException("Invalid batch size " + batchSize); }
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return largest number of commands sent with one write
+	 */
+	public int getBatchSize()
+	{ return this.batchSize; }
+
+	/**
+	 * @param flushDeadline time (in microseconds) a partial batch waits to
+	 *        fill; 0 to send partial batches right away
+	 */
+	public void setFlushDeadline(long flushDeadline)
+	{
+		if (flushDeadline < 0)
+		{ throw new IllegalArgumentException("Invalid deadline " + flushDeadline); }
+		this.flushDeadline = flushDeadline * 1000;
+	}
+
+	/**
+	 * @return time (in microseconds) a partial batch waits to fill
+	 */
+	public long getFlushDeadline()
+	{ return this.flushDeadline / 1000; }
+
+	/**
+	 * Queue a data command to be written. The buffer must not be modified 
+	 * after it is queued.
+	 * @param command buffer holding a complete command between its position
+	 *        and limit
+	 * @return true if the command was queued; false if the writer is closed
+	 *         or too many commands are waiting
+	 */
+	public boolean send(ByteBuffer command)
+	{ return this.send(new ByteBuffer[] { command }, false, null); }
+
+	/**
+	 * Queue a control command to be written, however many commands are 
+	 * waiting. The buffer must not be modified after it is queued.
+	 * @param command buffer holding a complete command between its position
+	 *        and limit
+	 * @return true if the command was queued; false if the writer is closed
+	 */
+	public boolean sendControl(ByteBuffer command)
+	{ return this.send(new ByteBuffer[] { command }, true, null); }
+
+	/**
+	 * Queue a command made up of one or more buffers, which are written back
+	 * to back. The buffers must not be modified until the command is 
+	 * written.
+	 * @param buffers buffers holding the command between their position and
+	 *        limit
+	 * @param control true if the command is queued however many commands are
+	 *        waiting
+	 * @param lease owner of a buffer lent for the command, which is held 
+	 *        until the command is written or discarded; null if no buffer 
+	 *        is lent
+	 * @return true if the command was queued; false if the writer is closed
+	 *         or too many commands are waiting, in which case the lease is
+	 *         not held
+	 */
+	public boolean send(ByteBuffer[] buffers, boolean control, 
+			FrameLease lease)
+	{
+		if (this.closed)
+		{ return false; }
+		if (this.pending.incrementAndGet() > this.capacity && !control)
+		{
+			this.pending.decrementAndGet();
+			this.drops.incrementAndGet();
+			return false;
+		}
+		if (lease != null)
+		{ lease.hold(); }
+		Command command = new Command(buffers, lease);
+		this.queue.offer(command);
+
+		// The writer may have given up on the connection in the meantime
+		if (this.closed && this.queue.remove(command))
+		{
+			this.pending.decrementAndGet();
+			command.release();
+			return false;
+		}
+		if (this.waiting)
+		{ LockSupport.unpark(this.thread); }
+		return true;
+	}
+
+	public void run()
+	{
+		Command[] batch = new Command[this.batchSize];
+		ByteBuffer[] buffers = new ByteBuffer[this.batchSize];
+		while (true)
+		{
+			if (batch.length != this.batchSize)
+			{ batch = new Command[this.batchSize]; }
+
+			int count = this.fill(batch);
+			if (0 == count)
+			{
+				if (this.closed)
+				{ return; }
+				this.await(0);
+				continue;
+			}
+
+			// Lay out the buffers of every command for one gathering write
+			int length = 0;
+			for (int i = 0; i < count; i++)
+			{
+				for (ByteBuffer buffer : batch[i].buffers)
+				{
+					if (length == buffers.length)
+					{ buffers = Arrays.copyOf(buffers, length * 2); }
+					buffers[length++] = buffer;
+				}
+			}
+
+			try
+			{
+				this.write(buffers, length);
+				this.commands.addAndGet(count);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error writing packet");
+				this.closed = true;
+				this.discard();
+				return;
+			}
+			finally
+			{
+				for (int i = 0; i < count; i++)
+				{
+					batch[i].release();
+					batch[i] = null;
+				}
+				Arrays.fill(buffers, 0, length, null);
+				this.pending.addAndGet(-count);
+			}
+		}
+	}
+
+	/**
+	 * Throw away every queued command, giving lent buffers back to their
+	 * owners.
+	 */
+	private void discard()
+	{
+		int count = 0;
+		Command command;
+		while ((command = this.queue.poll()) != null)
+		{
+			command.release();
+			count++;
+		}
+		this.pending.addAndGet(-count);
+	}
+
+	/**
+	 * Take commands from the queue, waiting up to the flush deadline for a
+	 * partial batch to fill.
+	 * @param batch array to fill
+	 * @return number of commands taken
+	 */
+	private int fill(Command[] batch)
+	{
+		int count = 0;
+		long deadline = 0;
+		while (count < batch.length)
+		{
+			Command command = this.queue.poll();
+			if (command != null)
+			{
+				batch[count++] = command;
+				continue;
+			}
+			if (0 == count || 0 == this.flushDeadline || this.closed)
+			{ break; }
+
+			long now = System.nanoTime();
+			if (0 == deadline)
+			{ deadline = now + this.flushDeadline; }
+			if (now - deadline >= 0)
+			{ break; }
+			this.await(deadline - now);
+		}
+		return count;
+	}
+
+	/**
+	 * Park until a command is queued.
+	 * @param nanos longest time to park, in nanoseconds; 0 for no limit
+	 */
+	private void await(long nanos)
+	{
+		// Announce the wait before rechecking, so a command queued in
+		// between is not missed
+		this.waiting = true;
+		if (this.queue.isEmpty() && !this.closed)
+		{
+			if (nanos > 0)
+			{ LockSupport.parkNanos(this, nanos); }
+			else
+			{ LockSupport.park(this); }
+		}
+		this.waiting = false;
+	}
+
+	/**
+	 * Write every byte of a batch of buffers.
+	 * @param buffers buffers to write
+	 * @param count number of buffers in the batch
+	 * @throws IOException if the write fails
+	 */
+	private void write(ByteBuffer[] buffers, int count) throws IOException
+	{
+		int offset = 0;
+		while (true)
+		{
+			while (offset < count && !buffers[offset].hasRemaining())
+			{ offset++; }
+			if (offset == count)
+			{ return; }
+			if (0 == this.channel.write(buffers, offset, count - offset))
+			{
+				LockSupport.parkNanos(this, WRITE_RETRY_NANOS);
+				continue;
+			}
+			this.writes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stop accepting commands, and wait for the queued commands to be
+	 * written.
+	 * @param timeout longest time to wait, in milliseconds
+	 */
+	public void close(long timeout)
+	{
+		this.closed = true;
+		LockSupport.unpark(this.thread);
+		try
+		{ this.thread.join(timeout); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * @return number of commands waiting to be written
+	 */
+	public int getPending()
+	{ return this.pending.get(); }
+
+	/**
+	 * @return number of commands written
+	 */
+	public long getCommandsWritten()
+	{ return this.commands.get(); }
+
+	/**
+	 * @return number of writes made to the server
+	 */
+	public long getWrites()
+	{ return this.writes.get(); }
+
+	/**
+	 * @return number of data commands dropped because too many commands were
+	 *         waiting
+	 */
+	public long getDrops()
+	{ return this.drops.get(); }
+
+	public String toString()
+	{
+		return String.format("commands %d, writes %d, pending %d, drops %d",
+				this.getCommandsWritten(), this.getWrites(), this.getPending(),
+				this.getDrops());
+	}
+}
@@ -1,30 +1,141 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.FrameLease;
+import edu.wisc.cs.sdn.vnet.FrameTransport;
 import edu.wisc.cs.sdn.vnet.Iface;
 
-public class VNSComm 
+public class VNSComm implements FrameTransport
 {
+	/** Default largest command accepted from the server, in bytes */
+	public static final int DEFAULT_MAX_COMMAND_LENGTH = 10000;
+	
+	/** Largest number of reads made by one call to {@link #readAvailable} */
+	public static final int READS_PER_CALL = 16;
+	
+	/** UDP port of RIP, whose packets are never dropped on the way out */
+	private static final short RIP_PORT = 520;
+	
 	private Socket socket;
 	private Device device;
 	
+	/** Connection to the server */
+	private SocketChannel channel;
+	
+	/** Single writer through which every command is sent to the server */
+	private EgressWriter egress;
+	
+	/** Pool from which the read buffer is taken */
+	private BufferPool bufferPool;
+	
+	/** Data read from the server but not yet processed, between the 
+	 *  buffer's position and limit */
+	private ByteBuffer inBuf;
+	
+	/** Largest command accepted from the server, in bytes */
+	private int maxCommandLength;
+	
+	/** Largest number of commands sent to the server with one write */
+	private int batchSize;
+	
+	/** Time (in microseconds) a partial batch of commands waits to fill */
+	private long flushDeadline;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.channel = null;
+		this.egress = null;
+		this.bufferPool = BufferPool.getShared();
+		this.inBuf = null;
+		this.maxCommandLength = DEFAULT_MAX_COMMAND_LENGTH;
+		this.batchSize = EgressWriter.DEFAULT_BATCH_SIZE;
+		this.flushDeadline = EgressWriter.DEFAULT_FLUSH_DEADLINE;
+	}
+	
+	/**
+	 * @param batchSize largest number of commands sent to the server with
+	 *        one write
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+		if (this.egress != null)
+		{ this.egress.setBatchSize(batchSize); }
+	}
+	
+	/**
+	 * @param flushDeadline time (in microseconds) a partial batch of commands
+	 *        waits to fill before it is sent; 0 to send right away
+	 */
+	public void setFlushDeadline(long flushDeadline)
+	{
+		this.flushDeadline = flushDeadline;
+		if (this.egress != null)
+		{ this.egress.setFlushDeadline(flushDeadline); }
 	}
 	
+	/**
+	 * @param maxCommandLength largest command accepted from the server, in
+	 *        bytes; raise it to receive jumbo frames
+	 */
+	public void setMaxCommandLength(int maxCommandLength)
+	{
+		if (maxCommandLength < CommandPacket.HEADER_LENGTH)
+		{ 
+			throw new IllegalArgumentException("Invalid command length " 
+					+ maxCommandLength); 
+		}
+		this.maxCommandLength = maxCommandLength;
+	}
+	
+	/**
+	 * @return largest command accepted from the server, in bytes
+	 */
+	public int getMaxCommandLength()
+	{ return this.maxCommandLength; }
+	
+	/**
+	 * @param bufferPool pool from which the read buffer is taken; must be
+	 *        set before connecting
+	 */
+	public void setBufferPool(BufferPool bufferPool)
+	{ this.bufferPool = bufferPool; }
+	
+	/**
+	 * @return device for which commands are exchanged with the server
+	 */
+	public Device getDevice()
+	{ return this.device; }
+	
+	/**
+	 * @return connection to the server; null if not connected
+	 */
+	public SocketChannel getChannel()
+	{ return this.channel; }
+	
+	/**
+	 * @return writer through which commands are sent to the server; null if
+	 *         not connected
+	 */
+	public EgressWriter getEgressWriter()
+	{ return this.egress; }
+	
 	public boolean connectToServer(short port, String server)
 	{
 		// Grab server address from name
@@ -38,32 +149,59 @@ public class VNSComm
 		}
 		
 		// Create socket and attempt to connect to the server
+		SocketChannel channel;
 		try 
-		{ socket = new Socket(addr, port); }
+		{ 
+			channel = SocketChannel.open(
+					new InetSocketAddress(addr, port & 0xffff));
+			socket = channel.socket();
+			this.channel = channel;
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 			return false;
 		}
 		
+		// Take an empty read buffer from the pool
+		this.inBuf = this.bufferPool.acquire(this.bufferPool.getBufferSize());
+		this.inBuf.flip();
+		
+		// Start the writer through which every command is sent
+		this.egress = new EgressWriter(channel, 
+				this.device.getHost() + "-egress", 
+				EgressWriter.DEFAULT_CAPACITY);
+		this.egress.setBatchSize(this.batchSize);
+		this.egress.setFlushDeadline(this.flushDeadline);
+		
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
 		byte[] buf = cmdOpen.serialize();
 		
-		try
-		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
-		}
-		catch(IOException e)
+		return this.egress.sendControl(ByteBuffer.wrap(buf)); 
+	}
+	
+	/**
+	 * Stop sending commands to the server, after writing those already 
+	 * queued, and close the connection.
+	 */
+	public void close()
+	{
+		if (this.egress != null)
+		{ this.egress.close(1000); }
+		try 
+		{ 
+			if (this.socket != null)
+			{ this.socket.close(); }
+		} 
+		catch (IOException e) 
+		{ }
+		if (this.inBuf != null)
 		{
-			e.printStackTrace();
-			return false;
+			this.bufferPool.release(this.inBuf);
+			this.inBuf = null;
 		}
-		
-		return true; 
 	}
 	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
@@ -103,75 +241,149 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Block until data arrives from the server, then process every complete
+	 * command that has been received.
+	 * @return false if the connection was closed or a command was invalid
+	 */
 	public boolean readFromServer()
-	{ return this.readFromServerExpect(0); }
+	{
+		if (!this.hasCommand() && this.fill() < 0)
+		{ return false; }
+		while (this.hasCommand())
+		{
+			if (!this.processCommand(0))
+			{ return false; }
+		}
+		return true;
+	}
 	
+	/**
+	 * Process exactly one command from the server, blocking until it has 
+	 * been received.
+	 * @param expectedCmd command that is expected; 0 to accept any command
+	 * @return false if the connection was closed, a command was invalid, or
+	 *         the command was not the one expected
+	 */
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		while (!this.hasCommand())
 		{
-			e.printStackTrace();
-			return false;
+			if (this.fill() < 0)
+			{ return false; }
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		return this.processCommand(expectedCmd);
+	}
+	
+	/**
+	 * Process every command that can be received from the server without
+	 * blocking. The connection must be in non-blocking mode. To be fair to
+	 * other connections, at most {@link #READS_PER_CALL} reads are made.
+	 * @return false if the connection was closed or a command was invalid
+	 */
+	public boolean readAvailable()
+	{
+		for (int i = 0; i < READS_PER_CALL; i++)
 		{
-			try 
+			while (this.hasCommand())
 			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+				if (!this.processCommand(0))
+				{ return false; }
+			}
+			int ret = this.fill();
+			if (ret < 0)
+			{ return false; }
+			if (0 == ret)
+			{ break; }
+		}
+		while (this.hasCommand())
+		{
+			if (!this.processCommand(0))
+			{ return false; }
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if a complete command is waiting in the read buffer
+	 */
+	private boolean hasCommand()
+	{
+		ByteBuffer in = this.inBuf;
+		if (in.remaining() < 4)
+		{ return false; }
+		int len = in.getInt(in.position());
+		return (len < 4 || len > this.maxCommandLength 
+				|| in.remaining() >= len);
+	}
+	
+	/**
+	 * Read as much as is available from the server into the read buffer; in
+	 * blocking mode, block until at least one byte arrives. The buffer grows
+	 * if it cannot hold the command at its head.
+	 * @return number of bytes read; -1 if the connection was closed or the
+	 *         read failed
+	 */
+	private int fill()
+	{
+		ByteBuffer in = this.inBuf;
+		if (in.remaining() >= 4)
+		{
+			int len = in.getInt(in.position());
+			if (len > in.capacity())
 			{
-				e.printStackTrace();
-				return false;
+				ByteBuffer bigger = this.bufferPool.acquire(len);
+				bigger.put(in);
+				bigger.flip();
+				this.bufferPool.release(in);
+				this.inBuf = in = bigger;
 			}
 		}
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		in.compact();
+		int ret;
+		try
+		{
+			ret = this.channel.read(in);
+			if (ret < 0)
+			{ throw new IOException("Connection closed by server"); }
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			in.flip();
+			return -1;
+		}
+		in.flip();
+		return ret;
+	}
+	
+	/**
+	 * Process the complete command at the head of the read buffer.
+	 * @param expectedCmd command that is expected; 0 to accept any command
+	 * @return false if the command was invalid or not the one expected
+	 */
+	private boolean processCommand(int expectedCmd)
+	{
+		ByteBuffer in = this.inBuf;
+		int start = in.position();
+		int len = in.getInt(start);
 		
-		if (len > 10000 || len < 0)
+		if (len > this.maxCommandLength || len < 8)
 		{
 			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
+					"Error: invalid command length %d", len));
 			try { socket.close(); } catch (IOException e) { }
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		// View the command in place, and consume it from the read buffer
+		in.position(start + len);
+		ByteBuffer buf = in.duplicate();
+		buf.position(start);
+		buf.limit(start + len);
+		buf = buf.slice();
+		buf.position(4);
 		
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
@@ -190,11 +402,29 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
+			// Offer the raw frame to the device before decoding it
+			byte[] nameBytes = new byte[CommandPacket.IFACE_NAME_LENGTH];
+			buf.position(8);
+			buf.get(nameBytes);
+			Iface inIface = this.device.getInterface(new String(nameBytes).trim());
+			if (inIface != null)
+			{
+				// Hand over a view of the frame; it is not copied
+				buf.position(CommandPacket.HEADER_LENGTH);
+				this.device.receiveFrame(buf, inIface);
+				break;
+			}
+			
+			// Decode the whole command from a copy on the heap
+			ByteBuffer heapBuf = ByteBuffer.allocate(len);
+			buf.position(0);
+			heapBuf.put(buf);
+			heapBuf.position(0);
 			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			cmdPkt.deserialize(heapBuf);
 			
 			// Log packet
-            if (this.device.getLogFile() != null)
+            if (inIface == null && this.device.getLogFile() != null)
             { this.device.getLogFile().dump(cmdPkt.etherPacket); }
 			
 			// Pass to device, student's code should take over here
@@ -260,17 +490,177 @@ public class VNSComm
         if (this.device.getLogFile() != null)
         { this.device.getLogFile().dump(etherPacket); }
 		
-	    try
+		ByteBuffer command = ByteBuffer.wrap(buf);
+		boolean control = isControl(ByteBuffer.wrap(buf, 
+				CommandPacket.HEADER_LENGTH, 
+				buf.length - CommandPacket.HEADER_LENGTH));
+		return this.egress.send(new ByteBuffer[] { command }, control, null);
+	}
+	
+	/**
+	 * Send a raw Ethernet frame without decoding or re-encoding it. The 
+	 * frame is copied into a new command, so the caller may reuse its buffer
+	 * as soon as this returns.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was queued to be sent, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, String ifaceName)
+	{ return this.sendFrame(frame, ifaceName, null); }
+	
+	/**
+	 * Send a raw Ethernet frame without decoding or re-encoding it, from a 
+	 * lent buffer. The frame is not copied: if the buffer has room for the
+	 * command header in front of the frame, the header is written there and
+	 * the buffer is sent in place; otherwise a separate header is sent ahead
+	 * of the frame in the same write. The lease is held until the command is
+	 * written. Without a lease, the frame is copied into a new command.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit; the buffer's position and limit are not changed
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @param lease owner of the buffer; null if the buffer is reused as soon
+	 *        as this returns
+	 * @return true if the frame was queued to be sent, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, String ifaceName, 
+			FrameLease lease)
+	{
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame); }
+		
+		ByteBuffer[] command;
+		if (lease != null)
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			command = new ByteBuffer[hasRoom(frame) ? 1 : 2];
+			layOut(frame, ifaceName, command, 0);
 		}
-		catch(IOException e)
+		else
 		{
-			System.err.println("Error writing packet");
-			return false;
+			int len = frame.remaining() + CommandPacket.HEADER_LENGTH;
+			ByteBuffer buf = ByteBuffer.allocate(len);
+			putHeader(buf, 0, len, ifaceName);
+			buf.position(CommandPacket.HEADER_LENGTH);
+			buf.put(frame.duplicate());
+			buf.flip();
+			command = new ByteBuffer[] { buf };
 		}
-		return true;
+	    return this.egress.send(command, isControl(frame), lease);
+	}
+	
+	/**
+	 * Send several raw Ethernet frames out the same interface as a single
+	 * batch of commands. The buffers are never reused, so none of the 
+	 * frames is copied.
+	 * @param frames buffers each holding an Ethernet frame between their 
+	 *        position and limit
+	 * @param ifaceName name of the interface on which to send the frames
+	 * @return true if the frames were queued to be sent, otherwise false
+	 */
+	public boolean sendFrames(List<ByteBuffer> frames, String ifaceName)
+	{
+		ByteBuffer[] commands = new ByteBuffer[2 * frames.size()];
+		int count = 0;
+		boolean control = false;
+		for (ByteBuffer frame : frames)
+		{
+			count = layOut(frame, ifaceName, commands, count);
+			control |= isControl(frame);
+			
+			// Log packet
+	        if (this.device.getLogFile() != null)
+	        { this.device.getLogFile().dump(frame); }
+		}
+		
+		if (count < commands.length)
+		{ commands = Arrays.copyOf(commands, count); }
+	    return this.egress.send(commands, control, null);
+	}
+	
+	/**
+	 * Lay out the VNS_PACKET command for a frame without copying it: the 
+	 * header is written in front of the frame if there is room, or into a
+	 * buffer of its own otherwise.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @param command array to which the buffers of the command are added
+	 * @param count number of buffers already in the array
+	 * @return number of buffers in the array
+	 */
+	private static int layOut(ByteBuffer frame, String ifaceName, 
+			ByteBuffer[] command, int count)
+	{
+		int start = frame.position() - CommandPacket.HEADER_LENGTH;
+		int len = frame.remaining() + CommandPacket.HEADER_LENGTH;
+		if (hasRoom(frame))
+		{
+			ByteBuffer buf = frame.duplicate();
+			putHeader(buf, start, len, ifaceName);
+			buf.position(start);
+			command[count++] = buf;
+			return count;
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(CommandPacket.HEADER_LENGTH);
+		putHeader(header, 0, len, ifaceName);
+		command[count++] = header;
+		command[count++] = frame.duplicate();
+		return count;
+	}
+	
+	/**
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @return true if the command header can be written into the buffer in
+	 *         front of the frame
+	 */
+	private static boolean hasRoom(ByteBuffer frame)
+	{ 
+		return frame.position() >= CommandPacket.HEADER_LENGTH 
+				&& !frame.isReadOnly();
+	}
+	
+	/**
+	 * Check whether a frame carries ARP or RIP, which keep neighbors and 
+	 * routes current and so are queued however many frames are waiting.
+	 * @param frame buffer holding an Ethernet frame between its position and
+	 *        limit
+	 * @return true if the frame is an ARP packet or a RIP packet
+	 */
+	private static boolean isControl(ByteBuffer frame)
+	{
+		int base = frame.position();
+		int len = frame.remaining();
+		if (len < 14)
+		{ return false; }
+		short etherType = frame.getShort(base + 12);
+		if (Ethernet.TYPE_ARP == etherType)
+		{ return true; }
+		if (etherType != Ethernet.TYPE_IPv4 || len < 14 + 20)
+		{ return false; }
+		int ip = base + 14;
+		int headerLength = (frame.get(ip) & 0xf) * 4;
+		return IPv4.PROTOCOL_UDP == frame.get(ip + 9)
+				&& len >= 14 + headerLength + 4
+				&& RIP_PORT == frame.getShort(ip + headerLength + 2);
+	}
+	
+	/**
+	 * Write the header of a VNS_PACKET command into a buffer.
+	 * @param buf buffer to write into
+	 * @param start absolute index at which the command starts
+	 * @param len total length of the command, including the frame
+	 * @param ifaceName name of the interface on which to send the frame
+	 */
+	private static void putHeader(ByteBuffer buf, int start, int len, 
+			String ifaceName)
+	{
+		buf.putInt(start, len);
+		buf.putInt(start + 4, Command.VNS_PACKET);
+		byte[] name = ifaceName.getBytes();
+		for (int i = 0; i < CommandPacket.IFACE_NAME_LENGTH; i++)
+		{ buf.put(start + 8 + i, (i < name.length) ? name[i] : 0); }
 	}
 }
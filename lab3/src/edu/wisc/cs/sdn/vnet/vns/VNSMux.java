@@ -0,0 +1,210 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the connections of many devices from a small pool of event loops,
+ * so one process can run many routers and switches. Each event loop waits
+ * on a selector for any of its connections to become readable, and then
+ * processes the commands that arrived on it. Connections are assigned to
+ * event loops in turn.
+ * <p>
+ * A connection is registered once its session has been negotiated. When the
+ * server closes it, the connection is closed and its device destroyed.
+ */
+public class VNSMux
+{
+	/**
+	 * A thread waiting on a selector for its connections to become readable.
+	 */
+	private class EventLoop extends Thread
+	{
+		final Selector selector;
+		final ConcurrentLinkedQueue<VNSComm> added;
+
+		EventLoop(int index) throws IOException
+		{
+			super("vns-loop-" + index);
+			this.setDaemon(true);
+			this.selector = Selector.open();
+			this.added = new ConcurrentLinkedQueue<VNSComm>();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (!this.isInterrupted())
+				{
+					this.selector.select();
+					this.registerAdded();
+
+					Iterator<SelectionKey> it =
+							this.selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isValid() && key.isReadable())
+						{ this.read(key, (VNSComm)key.attachment()); }
+					}
+				}
+			}
+			catch (ClosedSelectorException e)
+			{ return; }
+			catch (IOException e)
+			{ e.printStackTrace(); }
+		}
+
+		/**
+		 * Start watching connections added since the last wakeup, and
+		 * process any commands they received before they were added.
+		 */
+		private void registerAdded()
+		{
+			VNSComm comm;
+			while ((comm = this.added.poll()) != null)
+			{
+				SelectionKey key;
+				try
+				{
+					key = comm.getChannel().register(this.selector,
+							SelectionKey.OP_READ, comm);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+					closed(comm);
+					continue;
+				}
+				this.read(key, comm);
+			}
+		}
+
+		/**
+		 * Process the commands available on a connection, closing it if the
+		 * server closed it.
+		 */
+		private void read(SelectionKey key, VNSComm comm)
+		{
+			boolean open;
+			try
+			{ open = comm.readAvailable(); }
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+				open = true;
+			}
+			if (!open)
+			{
+				key.cancel();
+				closed(comm);
+			}
+		}
+	}
+
+	/** Event loops */
+	private final EventLoop[] loops;
+
+	/** Event loop to which the next connection is assigned */
+	private int next;
+
+	/** Number of connections registered and not yet closed */
+	private final AtomicInteger sessions;
+
+	/**
+	 * Create and start a pool of event loops.
+	 * @param loops number of event loops
+	 * @throws IOException if a selector cannot be opened
+	 */
+	public VNSMux(int loops) throws IOException
+	{
+		if (loops < 1)
+		{ throw new IllegalArgumentException("Invalid event loops " + loops); }
+		this.loops = new EventLoop[loops];
+		for (int i = 0; i < loops; i++)
+		{
+			this.loops[i] = new EventLoop(i);
+			this.loops[i].start();
+		}
+		this.next = 0;
+		this.sessions = new AtomicInteger();
+	}
+
+	/**
+	 * Hand a connection whose session has been negotiated to an event loop.
+	 * The connection is switched to non-blocking mode.
+	 * @param comm connection to the server for one device
+	 * @throws IOException if the connection cannot be made non-blocking
+	 */
+	public synchronized void register(VNSComm comm) throws IOException
+	{
+		comm.getChannel().configureBlocking(false);
+		EventLoop loop = this.loops[this.next];
+		this.next = (this.next + 1) % this.loops.length;
+		this.sessions.incrementAndGet();
+		loop.added.offer(comm);
+		loop.selector.wakeup();
+	}
+
+	/**
+	 * Close a connection the server closed, and destroy its device.
+	 * @param comm the connection
+	 */
+	private void closed(VNSComm comm)
+	{
+		comm.close();
+		comm.getDevice().destroy();
+		if (0 == this.sessions.decrementAndGet())
+		{
+			synchronized (this.sessions)
+			{ this.sessions.notifyAll(); }
+		}
+	}
+
+	/**
+	 * Block until every registered connection has been closed.
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void awaitClosed() throws InterruptedException
+	{
+		synchronized (this.sessions)
+		{
+			while (this.sessions.get() > 0)
+			{ this.sessions.wait(); }
+		}
+	}
+
+	/**
+	 * Stop the event loops. Connections still open are left open.
+	 */
+	public void shutdown()
+	{
+		for (EventLoop loop : this.loops)
+		{
+			loop.interrupt();
+			try
+			{ loop.selector.close(); }
+			catch (IOException e)
+			{ }
+		}
+	}
+
+	/**
+	 * @return number of event loops
+	 */
+	public int getLoopCount()
+	{ return this.loops.length; }
+
+	/**
+	 * @return number of connections registered and not yet closed
+	 */
+	public int getSessionCount()
+	{ return this.sessions.get(); }
+}
@@ -91,6 +91,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set
+     */
+    public Ethernet setDestinationMACAddress(MACAddress destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -121,6 +129,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set
+     */
+    public Ethernet setSourceMACAddress(MACAddress sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @return the priorityCode
      */
@@ -59,6 +59,11 @@ public class IPv4 extends BasePacket {
 
     protected boolean isTruncated;
 
+    /** Header bytes as received, retained by deserialize and kept in step
+     *  by decrementTtl; null if the packet was not decoded from bytes or a
+     *  header field has been changed since */
+    protected byte[] headerBytes;
+
     /**
      * Default constructor that sets the version to 4.
      */
@@ -80,6 +85,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setVersion(byte version) {
         this.version = version;
+        this.headerBytes = null;
         return this;
     }
 
@@ -102,6 +108,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setDiffServ(byte diffServ) {
         this.diffServ = diffServ;
+        this.headerBytes = null;
         return this;
     }
 
@@ -132,6 +139,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setIdentification(short identification) {
         this.identification = identification;
+        this.headerBytes = null;
         return this;
     }
 
@@ -147,6 +155,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setFlags(byte flags) {
         this.flags = flags;
+        this.headerBytes = null;
         return this;
     }
 
@@ -162,6 +171,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setFragmentOffset(short fragmentOffset) {
         this.fragmentOffset = fragmentOffset;
+        this.headerBytes = null;
         return this;
     }
 
@@ -177,6 +187,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setTtl(byte ttl) {
         this.ttl = ttl;
+        this.headerBytes = null;
         return this;
     }
 
@@ -192,6 +203,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setProtocol(byte protocol) {
         this.protocol = protocol;
+        this.headerBytes = null;
         return this;
     }
 
@@ -207,14 +219,64 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setChecksum(short checksum) {
         this.checksum = checksum;
+        this.headerBytes = null;
         return this;
     }
     @Override
     public void resetChecksum() {
         this.checksum = 0;
+        this.headerBytes = null;
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the header checksum without serializing the payload. For a
+     * decoded packet whose header has not been changed since, the header
+     * bytes retained at decode time are checked; otherwise the header is
+     * built from the current field values.
+     * @return true if the header checksum is correct
+     */
+    public boolean isChecksumValid() {
+        byte[] header = this.headerBytes;
+        if (header == null) {
+            int optionsLength = (this.options == null) ? 0 : this.options.length;
+            ByteBuffer bb = ByteBuffer.allocate(20 + optionsLength);
+            bb.put((byte) (((this.version & 0xf) << 4) | ((5 + optionsLength / 4) & 0xf)));
+            bb.put(this.diffServ);
+            bb.putShort(this.totalLength);
+            bb.putShort(this.identification);
+            bb.putShort((short) (((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff)));
+            bb.put(this.ttl);
+            bb.put(this.protocol);
+            bb.putShort(this.checksum);
+            bb.putInt(this.sourceAddress);
+            bb.putInt(this.destinationAddress);
+            if (this.options != null)
+                bb.put(this.options);
+            header = bb.array();
+        }
+        return onesComplementSum(ByteBuffer.wrap(header), 0, header.length) == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL and patches the header checksum for the change,
+     * without serializing the payload or recomputing the whole checksum.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) ((this.ttl << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) ((this.ttl << 8) | (this.protocol & 0xff));
+        if (this.checksum != 0)
+            this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        if (this.headerBytes != null) {
+            this.headerBytes[8] = this.ttl;
+            this.headerBytes[10] = (byte) (this.checksum >> 8);
+            this.headerBytes[11] = (byte) this.checksum;
+        }
+        return this;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -227,6 +289,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setSourceAddress(int sourceAddress) {
         this.sourceAddress = sourceAddress;
+        this.headerBytes = null;
         return this;
     }
 
@@ -235,6 +298,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setSourceAddress(String sourceAddress) {
         this.sourceAddress = IPv4.toIPv4Address(sourceAddress);
+        this.headerBytes = null;
         return this;
     }
 
@@ -250,6 +314,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setDestinationAddress(int destinationAddress) {
         this.destinationAddress = destinationAddress;
+        this.headerBytes = null;
         return this;
     }
 
@@ -258,6 +323,7 @@ public class IPv4 extends BasePacket {
      */
     public IPv4 setDestinationAddress(String destinationAddress) {
         this.destinationAddress = IPv4.toIPv4Address(destinationAddress);
+        this.headerBytes = null;
         return this;
     }
 
@@ -276,6 +342,7 @@ public class IPv4 extends BasePacket {
             throw new IllegalArgumentException(
                     "Options length must be a multiple of 4");
         this.options = options;
+        this.headerBytes = null;
         return this;
     }
 
@@ -297,6 +364,7 @@ public class IPv4 extends BasePacket {
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
+        this.headerBytes = null;
 
         this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
                 : payloadData.length));
@@ -359,6 +427,7 @@ public class IPv4 extends BasePacket {
             this.options = new byte[optionsLength];
             bb.get(this.options);
         }
+        this.headerBytes = Arrays.copyOfRange(data, offset, bb.position());
 
         IPacket payload;
         if (IPv4.protocolClassMap.containsKey(this.protocol)) {
@@ -492,6 +561,45 @@ public class IPv4 extends BasePacket {
                 (byte)ipAddress};
     }
 
+    /**
+     * Computes the 16-bit one's complement sum of a header held in a buffer,
+     * as used by the IPv4 header checksum. A header whose checksum field is
+     * correct sums to 0xffff.
+     * @param buf buffer holding the header
+     * @param offset absolute index of the first byte of the header
+     * @param length length of the header in bytes
+     * @return the folded one's complement sum
+     */
+    public static int onesComplementSum(ByteBuffer buf, int offset, int length) {
+        int accumulation = 0;
+        for (int i = offset; i < offset + length - 1; i += 2) {
+            accumulation += 0xffff & buf.getShort(i);
+        }
+        if ((length & 1) != 0) {
+            accumulation += (buf.get(offset + length - 1) & 0xff) << 8;
+        }
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        return accumulation;
+    }
+
+    /**
+     * Incrementally updates a checksum after one 16-bit word of the
+     * checksummed data changes, without summing the rest of the data
+     * (RFC 1624, eqn. 3).
+     * @param checksum the checksum before the change
+     * @param oldWord the word before the change
+     * @param newWord the word after the change
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldWord, short newWord) {
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        return (short) (~accumulation & 0xffff);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#hashCode()
      */